@@ -34,12 +34,14 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
 import edu.columbia.incite.corpus.Lexicon;
+import edu.columbia.incite.corpus.work.CoocWeighting;
 import edu.columbia.incite.run.ConfBase;
 import edu.columbia.incite.uima.index.CorpusIndexer;
 import edu.columbia.incite.uima.index.Tokenizer;
 import edu.columbia.incite.uima.io.BinaryReader;
 import edu.columbia.incite.uima.io.BinaryWriter;
 import edu.columbia.incite.uima.tools.InciteBroker;
+import edu.columbia.incite.util.SparseMatrix;
 
 /**
  *
@@ -58,11 +60,17 @@ public class Conf extends ConfBase {
     public static final String PARAM_INPUT_DIR    = "uima_indir";
     public static final String PARAM_OUTPUT_DIR   = "uima_outdir";
     public static final String PARAM_TABLES_DIR   = "tables_dir";
+    public static final String PARAM_TMP_DIR      = "tmp_dir";
+    public static final String PARAM_DSET_DIR     = "docset_dir";
 
     public static final String PARAM_COOC_FILE    = "cooc_file";
     public static final String PARAM_POSC_FILE    = "posc_file";
     public static final String PARAM_FREQ_FILE    = "freq_file";
+    public static final String PARAM_DF_FILE      = "df_file";
     public static final String PARAM_LXCN_FILE    = "lxcn_file";
+    public static final String PARAM_LXCN_SNAP    = "lxcn_snapshot";
+    public static final String PARAM_FWD_FILE     = "fwd_file";
+    public static final String PARAM_STATE_FILE   = "state_file";
     public static final String PARAM_TERM_ID      = "term_id";
 
     public static final String PARAM_UIMA_READER  = "uima_reader";
@@ -76,12 +84,25 @@ public class Conf extends ConfBase {
     public static final String PARAM_SPLIT_FIELD  = "field_split";
     public static final String PARAM_FILTER_FIELD = "field_filter";
     public static final String PARAM_FILTER_TERM  = "filter_term";
+    public static final String PARAM_DSET_CACHE   = "docset_cache";
+    public static final String PARAM_DSET_BUDGET  = "docset_disk_budget";
+    public static final String PARAM_SAMPLE_RATE  = "sample_rate";
+    public static final String PARAM_SAMPLE_STRAT = "sample_stratify";
+    public static final String PARAM_SAMPLE_SEED  = "sample_seed";
     
     public static final String PARAM_COOCUR_W_PRE = "cooc_w_pre";
     public static final String PARAM_COOCUR_W_POS = "cooc_w_pos";
     public static final String PARAM_MIN_TERM_FRQ = "min_term_freq";
+    public static final String PARAM_COOC_MATRIX  = "cooc_matrix";
+    public static final String PARAM_COOC_SHARDS  = "cooc_shards";
+    public static final String PARAM_COOC_BUDGET  = "cooc_heap_budget";
+    public static final String PARAM_COOC_FWD     = "cooc_fwd_index";
+    public static final String PARAM_COOC_WEIGHT  = "cooc_weighting";
+    public static final String PARAM_COOC_WEIGHT_POS = "cooc_weighting_pos";
     
     public static final String PARAM_THREADS      = "threads";
+    public static final String PARAM_TASK_QUEUE   = "task_queue";
+    public static final String PARAM_TERM_BATCH   = "term_batch";
     public static final String PARAM_QUIET        = "quiet";
     public static final String PARAM_DUMP_CONF    = "dump_conf";
 
@@ -96,11 +117,17 @@ public class Conf extends ConfBase {
     public static final String DESC_INPUT_DIR    = "UIMA input directory";
     public static final String DESC_OUTPUT_DIR   = "UIMA output directory";
     public static final String DESC_TABLES_DIR   = "Corpus metadata tables directory";
+    public static final String DESC_TMP_DIR      = "Temporary files directory";
+    public static final String DESC_DSET_DIR     = "Document set store directory";
 
     public static final String DESC_COOC_FILE    = "Cooccurrence file name";
     public static final String DESC_POSC_FILE    = "POS counts file name";
     public static final String DESC_FREQ_FILE    = "Frequencies file name";
+    public static final String DESC_DF_FILE      = "Document frequencies file name";
     public static final String DESC_LXCN_FILE    = "Lexicon file name";
+    public static final String DESC_LXCN_SNAP    = "Lexicon binary snapshot file name";
+    public static final String DESC_FWD_FILE     = "Forward index file name";
+    public static final String DESC_STATE_FILE   = "Incremental update state file name";
     public static final String DESC_TERM_ID      = "Term id column header";
     
     public static final String DESC_UIMA_READER  = "UIMA collection reader";
@@ -114,12 +141,25 @@ public class Conf extends ConfBase {
     public static final String DESC_SPLIT_FIELD  = "Split field for term frequencies";
     public static final String DESC_FILTER_FIELD = "Default filtering field";
     public static final String DESC_FILTER_TERM  = "Default filtering field term";
+    public static final String DESC_DSET_CACHE   = "Maximum number of document sets held in memory";
+    public static final String DESC_DSET_BUDGET  = "Document set store size in MB (0 for unbounded, -1 for memory only)";
+    public static final String DESC_SAMPLE_RATE  = "Fraction of filtered documents to analyse (1 for all)";
+    public static final String DESC_SAMPLE_STRAT = "Sample the same fraction from each split";
+    public static final String DESC_SAMPLE_SEED  = "Random seed for document samples";
     
     public static final String DESC_COOCUR_W_PRE = "Cooccurrence window trailing width";
     public static final String DESC_COOCUR_W_POS = "Cooccurrence window leading width";
     public static final String DESC_MIN_TERM_FRQ = "Minimum lexicon term frequency";
+    public static final String DESC_COOC_MATRIX  = "Cooccurrence matrix storage backend";
+    public static final String DESC_COOC_SHARDS  = "Shared cooccurrence matrix shards (0 for per-thread)";
+    public static final String DESC_COOC_BUDGET  = "Cooccurrence heap budget in MB (0 for unbounded)";
+    public static final String DESC_COOC_FWD     = "Count cooccurrences from a forward index";
+    public static final String DESC_COOC_WEIGHT  = "Cooccurrence distance weighting scheme";
+    public static final String DESC_COOC_WEIGHT_POS = "Cooccurrence weighting for leading window (if different)";
     
     public static final String DESC_THREADS      = "Number of threads to run workers on";
+    public static final String DESC_TASK_QUEUE   = "Maximum number of queued worker tasks";
+    public static final String DESC_TERM_BATCH   = "Number of lexicon terms per worker task";
     public static final String DESC_QUIET        = "Silence worker progress reports";
     public static final String DESC_DUMP_CONF    = "Dump effective configuration to disk";
 
@@ -134,11 +174,17 @@ public class Conf extends ConfBase {
     public static final String DFLT_INPUT_DIR     = "input";
     public static final String DFLT_OUTPUT_DIR    = "output";
     public static final String DFLT_TABLES_DIR    = "tables";
+    public static final String DFLT_TMP_DIR       = "tmp";
+    public static final String DFLT_DSET_DIR      = "docsets";
 
     public static final String DFLT_COOC_FILE     = "cooc.bin";
     public static final String DFLT_POSC_FILE     = "posc.dsv";
     public static final String DFLT_FREQ_FILE     = "freq.dsv";
+    public static final String DFLT_DF_FILE       = "df.dsv";
     public static final String DFLT_LXCN_FILE     = "lxcn.dsv";
+    public static final String DFLT_LXCN_SNAP     = "lxcn.bin";
+    public static final String DFLT_FWD_FILE      = "fwd.bin";
+    public static final String DFLT_STATE_FILE    = "state.bin";
     public static final String DFLT_TERM_ID       = Lexicon.TERM_ID;
     
     public static final Class  DFLT_UIMA_READER   = BinaryReader.class;
@@ -152,12 +198,24 @@ public class Conf extends ConfBase {
     public static final String DFLT_SPLIT_FIELD   = "split_field";
     public static final String DFLT_FILTER_FIELD  = "filter_field";
     public static final String DFLT_FILTER_TERM   = Tokenizer.NOTERM;
+    public static final int    DFLT_DSET_CACHE    = 16;
+    public static final long   DFLT_DSET_BUDGET   = 512;
+    public static final double DFLT_SAMPLE_RATE   = 1d;
+    public static final boolean DFLT_SAMPLE_STRAT = false;
+    public static final long   DFLT_SAMPLE_SEED   = 0;
 
     public static final int    DFLT_COOCUR_W_PRE  = 10;
     public static final int    DFLT_COOCUR_W_POS  = 10;
     public static final int    DFLT_MIN_TERM_FRQ  = 5;
+    public static final SparseMatrix.Backend DFLT_COOC_MATRIX = SparseMatrix.Backend.HASH;
+    public static final int    DFLT_COOC_SHARDS   = 0;
+    public static final long   DFLT_COOC_BUDGET   = 0;
+    public static final boolean DFLT_COOC_FWD     = false;
+    public static final CoocWeighting DFLT_COOC_WEIGHT = CoocWeighting.HARMONIC;
     
     public static final int    DFLT_THREADS       = Runtime.getRuntime().availableProcessors();
+    public static final int    DFLT_TASK_QUEUE    = 64;
+    public static final int    DFLT_TERM_BATCH    = 256;
     public static final boolean DFLT_QUIET        = false;
     public static final boolean DFLT_DUMP_CONF    = false;
     
@@ -223,11 +281,17 @@ public class Conf extends ConfBase {
         System.out.printf( format, PARAM_INPUT_DIR   , DESC_INPUT_DIR    );
         System.out.printf( format, PARAM_OUTPUT_DIR  , DESC_OUTPUT_DIR   );
         System.out.printf( format, PARAM_TABLES_DIR  , DESC_TABLES_DIR   );
+        System.out.printf( format, PARAM_TMP_DIR     , DESC_TMP_DIR      );
+        System.out.printf( format, PARAM_DSET_DIR    , DESC_DSET_DIR     );
 
         System.out.printf( format, PARAM_COOC_FILE   , DESC_COOC_FILE    );
         System.out.printf( format, PARAM_POSC_FILE   , DESC_POSC_FILE    );
         System.out.printf( format, PARAM_FREQ_FILE   , DESC_FREQ_FILE    );
+        System.out.printf( format, PARAM_DF_FILE     , DESC_DF_FILE      );
         System.out.printf( format, PARAM_LXCN_FILE   , DESC_LXCN_FILE    );
+        System.out.printf( format, PARAM_LXCN_SNAP   , DESC_LXCN_SNAP    );
+        System.out.printf( format, PARAM_FWD_FILE    , DESC_FWD_FILE     );
+        System.out.printf( format, PARAM_STATE_FILE  , DESC_STATE_FILE   );
         System.out.printf( format, PARAM_TERM_ID     , DESC_TERM_ID      );
 
         System.out.printf( format, PARAM_UIMA_READER , DESC_UIMA_READER  );
@@ -241,11 +305,24 @@ public class Conf extends ConfBase {
         System.out.printf( format, PARAM_SPLIT_FIELD , DESC_SPLIT_FIELD  );
         System.out.printf( format, PARAM_FILTER_FIELD, DESC_FILTER_FIELD );
         System.out.printf( format, PARAM_FILTER_TERM , DESC_FILTER_TERM  );
+        System.out.printf( format, PARAM_DSET_CACHE  , DESC_DSET_CACHE   );
+        System.out.printf( format, PARAM_DSET_BUDGET , DESC_DSET_BUDGET  );
+        System.out.printf( format, PARAM_SAMPLE_RATE , DESC_SAMPLE_RATE  );
+        System.out.printf( format, PARAM_SAMPLE_STRAT, DESC_SAMPLE_STRAT );
+        System.out.printf( format, PARAM_SAMPLE_SEED , DESC_SAMPLE_SEED  );
 
         System.out.printf( format, PARAM_COOCUR_W_PRE, DESC_COOCUR_W_PRE );
         System.out.printf( format, PARAM_COOCUR_W_POS, DESC_COOCUR_W_POS );
         System.out.printf( format, PARAM_MIN_TERM_FRQ, DESC_MIN_TERM_FRQ );
+        System.out.printf( format, PARAM_COOC_MATRIX , DESC_COOC_MATRIX  );
+        System.out.printf( format, PARAM_COOC_SHARDS , DESC_COOC_SHARDS  );
+        System.out.printf( format, PARAM_COOC_BUDGET , DESC_COOC_BUDGET  );
+        System.out.printf( format, PARAM_COOC_FWD    , DESC_COOC_FWD     );
+        System.out.printf( format, PARAM_COOC_WEIGHT , DESC_COOC_WEIGHT  );
+        System.out.printf( format, PARAM_COOC_WEIGHT_POS, DESC_COOC_WEIGHT_POS );
         System.out.printf( format, PARAM_THREADS     , DESC_THREADS      );
+        System.out.printf( format, PARAM_TASK_QUEUE  , DESC_TASK_QUEUE   );
+        System.out.printf( format, PARAM_TERM_BATCH  , DESC_TERM_BATCH   );
         System.out.printf( format, PARAM_QUIET       , DESC_QUIET        );
         System.out.printf( format, PARAM_DUMP_CONF   , DESC_DUMP_CONF    );
     }
@@ -262,11 +339,17 @@ public class Conf extends ConfBase {
         System.out.printf( format, PARAM_INPUT_DIR   , this.inputDir().toString()    );
         System.out.printf( format, PARAM_OUTPUT_DIR  , this.outputDir().toString()   );
         System.out.printf( format, PARAM_TABLES_DIR  , this.tablesDir().toString()   );
+        System.out.printf( format, PARAM_TMP_DIR     , this.tmpDir().toString()      );
+        System.out.printf( format, PARAM_DSET_DIR    , this.docSetDir().toString()   );
   
         System.out.printf( format, PARAM_COOC_FILE   , this.coocFile().toString()    );
         System.out.printf( format, PARAM_POSC_FILE   , this.poscFile().toString()    );
         System.out.printf( format, PARAM_FREQ_FILE   , this.freqFile().toString()    );
+        System.out.printf( format, PARAM_DF_FILE     , this.dfFile().toString()      );
         System.out.printf( format, PARAM_LXCN_FILE   , this.lxcnFile().toString()    );
+        System.out.printf( format, PARAM_LXCN_SNAP   , this.lxcnSnapshot().toString());
+        System.out.printf( format, PARAM_FWD_FILE    , this.fwdFile().toString()     );
+        System.out.printf( format, PARAM_STATE_FILE  , this.stateFile().toString()   );
         System.out.printf( format, PARAM_TERM_ID     , this.termId()                 );
   
         System.out.printf( format, PARAM_UIMA_READER , this.uimaReader().getName()   );
@@ -280,12 +363,25 @@ public class Conf extends ConfBase {
         System.out.printf( format, PARAM_SPLIT_FIELD , this.fieldSplit()             );
         System.out.printf( format, PARAM_FILTER_FIELD, this.fieldFilter()            );
         System.out.printf( format, PARAM_FILTER_TERM , this.filterTerm()             );
+        System.out.printf( format, PARAM_DSET_CACHE  , this.docSetCache()            );
+        System.out.printf( format, PARAM_DSET_BUDGET , this.docSetBudget()           );
+        System.out.printf( format, PARAM_SAMPLE_RATE , this.sampleRate()             );
+        System.out.printf( format, PARAM_SAMPLE_STRAT, this.sampleStratify()         );
+        System.out.printf( format, PARAM_SAMPLE_SEED , this.sampleSeed()             );
   
         System.out.printf( format, PARAM_COOCUR_W_PRE, this.wPre()                   );
         System.out.printf( format, PARAM_COOCUR_W_POS, this.wPos()                   );
         System.out.printf( format, PARAM_MIN_TERM_FRQ, this.minTermFreq()            );
+        System.out.printf( format, PARAM_COOC_MATRIX , this.coocMatrix()             );
+        System.out.printf( format, PARAM_COOC_SHARDS , this.coocShards()             );
+        System.out.printf( format, PARAM_COOC_BUDGET , this.coocBudget()             );
+        System.out.printf( format, PARAM_COOC_FWD    , this.coocFwd()                );
+        System.out.printf( format, PARAM_COOC_WEIGHT , this.coocWeighting()          );
+        System.out.printf( format, PARAM_COOC_WEIGHT_POS, this.coocWeightingPos()    );
   
         System.out.printf( format, PARAM_THREADS     , this.threads()                );
+        System.out.printf( format, PARAM_TASK_QUEUE  , this.taskQueue()              );
+        System.out.printf( format, PARAM_TERM_BATCH  , this.termBatch()              );
         System.out.printf( format, PARAM_QUIET       , this.quiet()                  );
         System.out.printf( format, PARAM_DUMP_CONF   , this.dumpConf()               );
     }
@@ -354,6 +450,18 @@ public class Conf extends ConfBase {
         );
     }
 
+    public Path tmpDir() {
+        return getPath(
+            PARAM_TMP_DIR, dataDir(), dataDir().resolve( Paths.get( DFLT_TMP_DIR ) )
+        );
+    }
+
+    public Path docSetDir() {
+        return getPath(
+            PARAM_DSET_DIR, dataDir(), dataDir().resolve( Paths.get( DFLT_DSET_DIR ) )
+        );
+    }
+
     public Path coocFile() {
         return getPath( PARAM_COOC_FILE,
             dataDir(), Paths.get( DFLT_COOC_FILE )
@@ -372,12 +480,36 @@ public class Conf extends ConfBase {
         );
     }
 
+    public Path dfFile() {
+        return getPath( PARAM_DF_FILE,
+            dataDir(), Paths.get( DFLT_DF_FILE )
+        );
+    }
+
     public Path lxcnFile() {
         return getPath( PARAM_LXCN_FILE,
             dataDir(), Paths.get( DFLT_LXCN_FILE )
         );
     }
 
+    public Path lxcnSnapshot() {
+        return getPath( PARAM_LXCN_SNAP,
+            dataDir(), Paths.get( DFLT_LXCN_SNAP )
+        );
+    }
+
+    public Path fwdFile() {
+        return getPath( PARAM_FWD_FILE,
+            dataDir(), Paths.get( DFLT_FWD_FILE )
+        );
+    }
+
+    public Path stateFile() {
+        return getPath( PARAM_STATE_FILE,
+            dataDir(), Paths.get( DFLT_STATE_FILE )
+        );
+    }
+
     public String termId() {
         return getString( PARAM_TERM_ID, DFLT_TERM_ID );
     }
@@ -402,6 +534,26 @@ public class Conf extends ConfBase {
         return getString( PARAM_FILTER_TERM, DFLT_FILTER_TERM );
     }
 
+    public int docSetCache() {
+        return getInteger( PARAM_DSET_CACHE, DFLT_DSET_CACHE );
+    }
+
+    public long docSetBudget() {
+        return getLong( PARAM_DSET_BUDGET, DFLT_DSET_BUDGET );
+    }
+
+    public double sampleRate() {
+        return getDouble( PARAM_SAMPLE_RATE, DFLT_SAMPLE_RATE );
+    }
+
+    public boolean sampleStratify() {
+        return getBoolean( PARAM_SAMPLE_STRAT, DFLT_SAMPLE_STRAT );
+    }
+
+    public long sampleSeed() {
+        return getLong( PARAM_SAMPLE_SEED, DFLT_SAMPLE_SEED );
+    }
+
     public Class uimaReader() {
         return getClass( PARAM_UIMA_READER, DFLT_UIMA_READER );
     }
@@ -443,10 +595,42 @@ public class Conf extends ConfBase {
         return getInteger( PARAM_MIN_TERM_FRQ, DFLT_MIN_TERM_FRQ );
     }
 
+    public SparseMatrix.Backend coocMatrix() {
+        return getEnum( PARAM_COOC_MATRIX, SparseMatrix.Backend.class, DFLT_COOC_MATRIX );
+    }
+
+    public int coocShards() {
+        return getInteger( PARAM_COOC_SHARDS, DFLT_COOC_SHARDS );
+    }
+
+    public long coocBudget() {
+        return getLong( PARAM_COOC_BUDGET, DFLT_COOC_BUDGET );
+    }
+
+    public boolean coocFwd() {
+        return getBoolean( PARAM_COOC_FWD, DFLT_COOC_FWD );
+    }
+
+    public CoocWeighting coocWeighting() {
+        return getEnum( PARAM_COOC_WEIGHT, CoocWeighting.class, DFLT_COOC_WEIGHT );
+    }
+
+    public CoocWeighting coocWeightingPos() {
+        return getEnum( PARAM_COOC_WEIGHT_POS, CoocWeighting.class, coocWeighting() );
+    }
+
     public int threads() {
         return getInteger( PARAM_THREADS, DFLT_THREADS );
     }
     
+    public int taskQueue() {
+        return getInteger( PARAM_TASK_QUEUE, DFLT_TASK_QUEUE );
+    }
+    
+    public int termBatch() {
+        return getInteger( PARAM_TERM_BATCH, DFLT_TERM_BATCH );
+    }
+    
     public boolean quiet() {
         return getBoolean( PARAM_QUIET, DFLT_QUIET );
     }
@@ -17,30 +17,39 @@
 package edu.columbia.incite;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.BiMap;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.SlowCompositeReaderWrapper;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
@@ -61,12 +70,21 @@ import org.xml.sax.SAXException;
 import edu.columbia.incite.corpus.work.CoocWorker;
 import edu.columbia.incite.corpus.work.FreqWorker;
 import edu.columbia.incite.corpus.work.POSCWorker;
+import edu.columbia.incite.corpus.work.ProfileWorker;
+import edu.columbia.incite.corpus.work.TermWorker;
+import edu.columbia.incite.corpus.CorpusState;
 import edu.columbia.incite.corpus.DocMap;
+import edu.columbia.incite.corpus.DocValuesDocMap;
 import edu.columbia.incite.corpus.DocSet;
+import edu.columbia.incite.corpus.DocSetStore;
+import edu.columbia.incite.corpus.ForwardIndex;
 import edu.columbia.incite.corpus.Lexicon;
+import edu.columbia.incite.corpus.Samples;
+import edu.columbia.incite.util.MappedSparseMatrix;
 import edu.columbia.incite.util.SparseMatrix;
 import edu.columbia.incite.run.CallbackListener;
 import edu.columbia.incite.run.Progress;
+import edu.columbia.incite.run.Scheduler;
 import edu.columbia.incite.uima.util.ComponentFactory;
 
 import static edu.columbia.incite.run.Logs.*;
@@ -80,8 +98,11 @@ public final class Lector {
     private final Map<String,DocMap<String>> mapCache = new HashMap<>();
         
     private Conf       conf;
+    private DirectoryReader dr;
     private LeafReader ir;
     private Lexicon    lxcn;
+    private ForwardIndex fwd;
+    private DocSetStore dsets;
     private DocSet     sample;
 
     public Lector() throws IOException {
@@ -97,16 +118,135 @@ public final class Lector {
     public void dumpCorpusData() {
         try {
             this.dumpLexicon( this.lexicon() );
-            long[][] freq = this.countFrequencies( docSample() );
-            this.dumpFrequencies( freq );
-            long[][] posc = this.countPOSTags( docSample() );
-            this.dumpPOSCounts( posc );
-            SparseMatrix cooc = this.countCooccurrences( docSample() );
-            this.dumpCooccurrences( cooc );
+            ProfileWorker prof = this.profileCorpus( docSample() );
+            this.dumpFrequencies( prof.tf() );
+            this.dumpDocFrequencies( prof.df() );
+            this.dumpPOSCounts( prof.posc() );
+            this.writeCooccurrences( docSample() );
+            CorpusState state = new CorpusState( stateParams(), 
+                splitNames( mapField( this.conf.fieldSplit() ) ), prof.tf(), prof.df(), prof.posc() 
+            );
+            this.writeState( state );
         } catch( IOException ex ) {
             Logger.getLogger(Lector.class.getName() ).log( Level.SEVERE, null, ex );
         }
     }
+
+    /**
+     * Bring all corpus data up to date with the index, counting only segments added since the 
+     * last call to this method or to {@link #dumpCorpusData()}.
+     * 
+     * Frequencies, POS counts and cooccurrences for new segments are added to the tables held in 
+     * the state file and to the cooccurrence file. Counts are always computed with the lexicon 
+     * used in the last full count, so terms that first reach the frequency threshold in new 
+     * segments are not included until the next full count.
+     * 
+     * Falls back to a full recount with {@link #dumpCorpusData()} if there is no valid state for 
+     * the current parameters, or if any counted segment has been merged away or has new 
+     * deletions since it was counted.
+     */
+    public void updateCorpusData() {
+        try {
+            Path file = this.conf.stateFile();
+            CorpusState state = CorpusState.read( file );
+            Lexicon lx = null;
+            List<LeafReaderContext> fresh = null;
+            if( state == null ) {
+                infof( "No valid counts state found in %s", file );
+            } else if( !stateParams().equals( state.params() ) ) {
+                infof( "Counting parameters have changed since last count" );
+            } else if( ( lx = Lexicon.readSnapshot( reader(), CorpusState.lexiconFile( file ), 
+                this.conf.fieldTxt(), this.conf.minTermFreq(), state.generation() ) ) == null ) {
+                infof( "No lexicon snapshot found for counts state in %s", file );
+            } else if( ( fresh = state.pending( reader() ) ) == null ) {
+                infof( "Counted segments have been merged or have new deletions" );
+            }
+            if( fresh == null ) {
+                infof( "Recounting all corpus data" );
+                dumpCorpusData();
+                return;
+            }
+            if( fresh.isEmpty() ) {
+                infof( "No new segments since generation %d", state.generation() );
+                return;
+            }
+            this.lxcn = lx;
+            
+            DocSet sample = docSample();
+            DocSet delta = new DocSet( reader().maxDoc() );
+            for( LeafReaderContext ctx : fresh ) {
+                int end = ctx.docBase + ctx.reader().maxDoc();
+                for( int d = ctx.docBase; d < end; d++ ) {
+                    if( sample.bits().get( d ) ) delta.add( d );
+                }
+            }
+            infof( "Counting %d new documents in %d new segments", delta.size(), fresh.size() );
+            
+            DocMap<String> splits = mapField( this.conf.fieldSplit() );
+            ProfileWorker prof = runTerms( new ProfileWorker( lx, splits, null ), delta, fresh );
+            state.add( splitNames( splits ), prof.tf(), prof.df(), prof.posc() );
+            infof( "Dumping frequencies to %s", this.conf.freqFile() );
+            FreqWorker.write( lx, state.tf(), state.cols(), this.conf.freqFile() );
+            infof( "Dumping document frequencies to %s", this.conf.dfFile() );
+            FreqWorker.write( lx, state.df(), state.cols(), this.conf.dfFile() );
+            this.dumpPOSCounts( state.posc() );
+            
+            mergeCooccurrences( runCooccurrences( delta, null ) );
+            state.record( reader(), indexGeneration() );
+            this.writeState( state );
+        } catch( IOException ex ) {
+            Logger.getLogger(Lector.class.getName() ).log( Level.SEVERE, null, ex );
+        }
+    }
+
+    private void mergeCooccurrences( CoocWorker wrkr ) throws IOException {
+        Path file  = this.conf.coocFile();
+        Files.createDirectories( this.conf.tmpDir() );
+        Path delta = this.conf.tmpDir().resolve( "cooc-delta.bin" );
+        wrkr.write( delta );
+        if( !Files.exists( file ) ) {
+            Files.move( delta, file, StandardCopyOption.REPLACE_EXISTING );
+            return;
+        }
+        infof( "Adding cooccurrence counts to %s", file );
+        Path tmp = file.resolveSibling( file.getFileName().toString() + ".tmp" );
+        try( 
+            SparseMatrix.Reader r1 = new SparseMatrix.Reader( file );
+            SparseMatrix.Reader r2 = new SparseMatrix.Reader( delta );
+            SparseMatrix.Writer w = new SparseMatrix.Writer( tmp )
+        ) {
+            SparseMatrix.Cursor c = SparseMatrix.merge( Arrays.asList( r1, r2 ) );
+            while( c.next() ) w.put( c.i(), c.j(), c.x() );
+        }
+        Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING );
+        Files.deleteIfExists( delta );
+    }
+
+    private void writeState( CorpusState state ) throws IOException {
+        if( state.generation() < 0 ) state.record( reader(), indexGeneration() );
+        Path file = this.conf.stateFile();
+        infof( "Recording counts state for %d segments in %s", state.segments(), file );
+        CorpusState.write( state, file );
+        Lexicon.writeSnapshot( lexicon(), state.generation(), CorpusState.lexiconFile( file ) );
+    }
+
+    private String stateParams() {
+        return String.join( "|", 
+            this.conf.fieldTxt(), Integer.toString( this.conf.minTermFreq() ),
+            this.conf.fieldSplit(), this.conf.fieldFilter(), this.conf.filterTerm(),
+            Integer.toString( this.conf.wPre() ), Integer.toString( this.conf.wPos() ),
+            this.conf.coocWeighting().name(), this.conf.coocWeightingPos().name(),
+            Double.toString( this.conf.sampleRate() ), Boolean.toString( this.conf.sampleStratify() ), 
+            Long.toString( this.conf.sampleSeed() )
+        );
+    }
+
+    private static List<String> splitNames( DocMap<String> splits ) {
+        BiMap<Long,String> map = splits.outputMap();
+        return map.keySet().stream().sorted().map( ( l ) -> map.get( l ) ).collect( 
+            Collectors.toList() 
+        );
+    }
     
     public long[][] countFrequencies( DocSet ds ) throws IOException {
         return countFrequencies( ds, null );
@@ -119,22 +259,7 @@ public final class Lector {
     
     public long[][] countFrequencies( DocSet ds, DocMap splits, Progress prog ) throws IOException {
         FreqWorker wrkr = new FreqWorker( lexicon(), splits, prog );
-        LeafReader lr = indexReader();
-        TermsEnum tEnum = lexicon().filter( lr.terms( lexicon().field() ) );
-        ExecutorService exec = Executors.newFixedThreadPool( this.conf.threads() );
-        while( tEnum.next() != null ) {
-            PostingsEnum pEnum = ds != null ?
-                ds.filter( tEnum.postings( null, wrkr.flags() ) ) :
-                tEnum.postings( null, wrkr.flags() );
-            exec.submit( wrkr.work( BytesRef.deepCopyOf( tEnum.term() ), pEnum ) );
-        }
-        exec.shutdown();
-        boolean quiet = conf.quiet();
-        while( !exec.isTerminated() ) {
-            if( !quiet ) wrkr.report();
-        }
-        if( !quiet ) wrkr.report();
-        return wrkr.data();
+        return runTerms( wrkr, ds ).data();
     }
 
     public void dumpFrequencies( long[][] data ) throws IOException {
@@ -143,24 +268,70 @@ public final class Lector {
         FreqWorker.write( lexicon(), data, mapField( this.conf.fieldSplit() ), file );
     }
     
+    public void dumpDocFrequencies( long[][] data ) throws IOException {
+        Path file = this.conf.dfFile();
+        infof( "Dumping document frequencies to %s", file );
+        FreqWorker.write( lexicon(), data, mapField( this.conf.fieldSplit() ), file );
+    }
+    
+    public ProfileWorker profileCorpus( DocSet ds ) throws IOException {
+        return profileCorpus( ds, null );
+    }
+    
+    public ProfileWorker profileCorpus( DocSet ds, Progress prog ) throws IOException {
+        DocMap<String> splits = mapField( this.conf.fieldSplit() );
+        return profileCorpus( ds, splits, prog );
+    }
+    
+    /**
+     * Compute term frequencies, document frequencies and POS counts in a single pass over each 
+     * term's postings.
+     * 
+     * @param ds     A document set, or {@code null} for all documents.
+     * @param splits A document map for split columns, or {@code null} for a single column.
+     * @param prog   A Progress for status reports.
+     * @return A ProfileWorker holding the computed tables.
+     * @throws IOException 
+     */
+    public ProfileWorker profileCorpus( DocSet ds, DocMap<String> splits, Progress prog ) 
+    throws IOException {
+        ProfileWorker wrkr = new ProfileWorker( lexicon(), splits, prog );
+        return runTerms( wrkr, ds );
+    }
+    
     public long[][] countPOSTags( DocSet ds ) throws IOException {
-        ExecutorService exec = Executors.newFixedThreadPool( this.conf.threads() );
         POSCWorker wrkr = new POSCWorker( lexicon() );
-        LeafReader lr = indexReader();
-        TermsEnum tEnum = lexicon().filter( lr.terms( lexicon().field() ) );
-        while( tEnum.next() != null ) {
-            PostingsEnum pEnum = ds != null ?
-                ds.filter( tEnum.postings( null, wrkr.flags() ) ) :
-                tEnum.postings( null, wrkr.flags() );
-            exec.submit( wrkr.work( BytesRef.deepCopyOf( tEnum.term() ), pEnum ) );
-        }
-        exec.shutdown();
-        boolean quiet = conf.quiet();
-        while( !exec.isTerminated() ) {
-            if( !quiet ) wrkr.report();
+        return runTerms( wrkr, ds ).data();
+    }
+
+    private <W extends TermWorker> W runTerms( W wrkr, DocSet ds ) throws IOException {
+        return runTerms( wrkr, ds, reader().leaves() );
+    }
+
+    private <W extends TermWorker> W runTerms( W wrkr, DocSet ds, List<LeafReaderContext> leaves ) 
+    throws IOException {
+        try( Scheduler sched = scheduler() ) {
+            if( !conf.quiet() ) sched.report( wrkr::report );
+            wrkr.schedule( leaves, ds, this.conf.termBatch(), sched );
+            sched.await();
+            if( sched.failures() > 0 ) throw new IOException( String.format(
+                "%d tasks failed, results are incomplete", sched.failures()
+            ) );
+        } catch( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( ex.getMessage() );
         }
-        if( !quiet ) wrkr.report();
-        return wrkr.data();
+        return wrkr;
+    }
+    
+    /**
+     * Create a new bounded scheduler for a worker job, using this Lector's thread and queue 
+     * settings.
+     * 
+     * @return A new Scheduler.
+     */
+    public Scheduler scheduler() {
+        return new Scheduler( this.conf.threads(), this.conf.taskQueue() );
     }
 
     public void dumpPOSCounts( long[][] data ) throws IOException {
@@ -174,26 +345,86 @@ public final class Lector {
     }
     
     public SparseMatrix countCooccurrences( DocSet ds, Progress out ) {
+        return runCooccurrences( ds, out ).data();
+    }
+
+    public void writeCooccurrences( DocSet ds ) throws IOException {
+        writeCooccurrences( ds, null );
+    }
+    
+    public void writeCooccurrences( DocSet ds, Progress out ) throws IOException {
+        CoocWorker wrkr = runCooccurrences( ds, out );
+        infof( "Writing cooccurrence counts to %s", this.conf.coocFile() );
+        wrkr.write( this.conf.coocFile() );
+    }
+    
+    /**
+     * Count cooccurrences for each value of the configured split field in a single pass, and 
+     * write one matrix per split, in parallel, next to the configured cooccurrence file with the 
+     * split value appended to its name, e.g. {@code cooc_1850.bin}.
+     * 
+     * @param ds A document set.
+     * @throws IOException 
+     */
+    public void writeSplitCooccurrences( DocSet ds ) throws IOException {
+        writeSplitCooccurrences( ds, null );
+    }
+
+    public void writeSplitCooccurrences( DocSet ds, Progress out ) throws IOException {
+        DocMap<String> splits = mapField( this.conf.fieldSplit() );
+        CoocWorker wrkr = runCooccurrences( ds, splits, out );
+        BiMap<Long,String> names = splits.outputMap();
+        try {
+            IntStream.range( 0, wrkr.size() ).parallel().forEach( ( k ) -> {
+                Path file = splitFile( this.conf.coocFile(), names.get( (long) k ) );
+                infof( "Writing cooccurrence counts for split %s to %s", names.get( (long) k ), file );
+                try {
+                    wrkr.write( k, file );
+                } catch( IOException ex ) {
+                    throw new UncheckedIOException( ex );
+                }
+            } );
+        } catch( UncheckedIOException ex ) {
+            throw ex.getCause();
+        }
+    }
+
+    private static Path splitFile( Path file, String split ) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf( '.' );
+        String tag = "_" + split.replaceAll( "[^\\w.-]", "_" );
+        name = dot > 0 ? name.substring( 0, dot ) + tag + name.substring( dot ) : name + tag;
+        return file.resolveSibling( name );
+    }
+    
+    private CoocWorker runCooccurrences( DocSet ds, Progress out ) {
+        return runCooccurrences( ds, null, out );
+    }
+    
+    private CoocWorker runCooccurrences( DocSet ds, DocMap<String> splits, Progress out ) {
         int wPre = this.conf.wPre();
         int wPos = this.conf.wPos();
         infof( "Counting coccurrences over %d documents with [ %d, %d ] windows", 
             ds.size(), wPre, wPos
         );
         CoocWorker wrkr = new CoocWorker(
-            lexicon(), indexReader(), this.conf.wPre(), this.conf.wPos(), out
-        );
-        ExecutorService exec = Executors.newFixedThreadPool( this.conf.threads() );
-        for( int i : ds ) {
-            final int task = i;
-            exec.execute( wrkr.work( task ) );
+            lexicon(), reader(), splits, wPre, wPos,
+            this.conf.coocMatrix(), this.conf.coocShards(), out
+        ).spill( this.conf.coocBudget() << 20, this.conf.tmpDir() );
+        wrkr.weighting( this.conf.coocWeighting(), this.conf.coocWeightingPos() );
+        if( this.conf.coocFwd() ) wrkr.forward( forwardIndex() );
+        try( Scheduler sched = scheduler() ) {
+            if( !conf.quiet() ) sched.report( wrkr::report );
+            sched.fork( wrkr.work( ds, this.conf.threads() ) );
+            sched.await();
+        } catch( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            Logger.getLogger(Lector.class.getName() ).log( Level.SEVERE, null, ex );
         }
-        exec.shutdown();
-        boolean quiet = conf.quiet();
-        while( !exec.isTerminated() ) {
-            if( !quiet ) wrkr.report();
+        if( wrkr.failures() > 0 ) {
+            warnf( "%d documents could not be read and were skipped", wrkr.failures() );
         }
-        if( !quiet ) wrkr.report();
-        return wrkr.data();
+        return wrkr;
     }
 
     public void dumpCooccurrences( SparseMatrix data ) throws IOException {
@@ -201,21 +432,53 @@ public final class Lector {
         SparseMatrix.save( data, this.conf.coocFile() );
     }
     
+    public MappedSparseMatrix openCooccurrences() throws IOException {
+        infof( "Opening cooccurrence counts from %s", this.conf.coocFile() );
+        return MappedSparseMatrix.open( this.conf.coocFile() );
+    }
+    
+    /**
+     * Get the set of documents containing terms matching the given regular expression in the given 
+     * field, from this Lector's {@link #docSets() document set store} if available.
+     * 
+     * @param field A field name.
+     * @param regex A regular expression.
+     * @return A DocSet, or {@code null} if the given field does not exist.
+     * @throws IOException 
+     */
     public DocSet makeDocSet( String field, String regex ) throws IOException {
-        Automaton au = new RegExp( regex ).toAutomaton();
-        DocSet ds = makeDocSet( field, au );
-        return ds;
+        String key = String.join( "\u0000", field, "regex", regex );
+        return docSets().get( key, indexGeneration(), () -> {
+            Automaton au = new RegExp( regex ).toAutomaton();
+            return makeDocSet( field, au );
+        } );
     }
 
+    /**
+     * Get the set of documents containing any of the given terms in the given field, from this 
+     * Lector's {@link #docSets() document set store} if available.
+     * 
+     * @param field A field name.
+     * @param terms An array of terms.
+     * @return A DocSet, or {@code null} if the given field does not exist.
+     * @throws IOException 
+     */
     public DocSet makeDocSet( String field, String[] terms ) throws IOException {
-        List<String> list = Arrays.asList( terms );
-        Set<String> set = new HashSet<>( list );
-        LeafReader lr = indexReader();
+        SortedSet<String> set = new TreeSet<>( Arrays.asList( terms ) );
+        String key = String.join( "\u0000", field, "terms", String.join( "\u0000", set ) );
+        return docSets().get( key, indexGeneration(), () -> collectDocSet( field, set ) );
+    }
+
+    private DocSet collectDocSet( String field, Set<String> set ) throws IOException {
+        IndexReader ir = reader();
         if( set.isEmpty() ) {
-            return new DocSet( lr.maxDoc() );
+            return new DocSet( ir.maxDoc() );
         } else if( set.size() == 1 ) {
-            DocSet ds = new DocSet( lr.maxDoc() );
-            ds.add( lr.postings( new Term( field, set.iterator().next() ) ) );
+            DocSet ds = new DocSet( ir.maxDoc() );
+            Term term = new Term( field, set.iterator().next() );
+            for( LeafReaderContext ctx : ir.leaves() ) {
+                ds.add( ctx.reader().postings( term ), ctx.docBase );
+            }
             return ds;
         }
         List<BytesRef> collect = set.stream().map(
@@ -232,13 +495,17 @@ public final class Lector {
         }
         infof( "Building document set over field %s", field );
         CompiledAutomaton cau = new CompiledAutomaton( term );
-        LeafReader lr = indexReader();
-        TermsEnum tEnum = cau.getTermsEnum( lr.terms( field ) );
-        DocSet ds = new DocSet( lr.maxDoc() );
-        PostingsEnum reuse = null;
-        while( tEnum.next() != null ) {
-            reuse = tEnum.postings( reuse );
-            ds.add( reuse );
+        IndexReader ir = reader();
+        DocSet ds = new DocSet( ir.maxDoc() );
+        for( LeafReaderContext ctx : ir.leaves() ) {
+            Terms terms = ctx.reader().terms( field );
+            if( terms == null ) continue;
+            TermsEnum tEnum = cau.getTermsEnum( terms );
+            PostingsEnum reuse = null;
+            while( tEnum.next() != null ) {
+                reuse = tEnum.postings( reuse, PostingsEnum.NONE );
+                ds.add( reuse, ctx.docBase );
+            }
         }
         infof( "Document set contains %d documents", ds.size() );
         return ds;
@@ -264,19 +531,87 @@ public final class Lector {
     public DocSet docSample() {
         try {
             this.sample = this.sample == null ?
-                makeDocSet( this.conf.fieldFilter(), this.conf.filterTerm() ) : this.sample;
+                randomSample( makeDocSet( this.conf.fieldFilter(), this.conf.filterTerm() ) ) : 
+                this.sample;
         } catch( IOException ex ) {
             Logger.getLogger(Lector.class.getName() ).log( Level.SEVERE, null, ex );
         }
         return this.sample;
     }
 
+    /**
+     * Draw a random sample from the given DocSet, according to this Lector's sampling settings.
+     * 
+     * Documents are sampled with probability {@link Conf#sampleRate()}, or in that proportion from 
+     * each split if {@link Conf#sampleStratify()} is set, using {@link Conf#sampleSeed()} as seed.
+     * 
+     * @param ds A DocSet.
+     * @return A random sample from ds, or ds itself if the sample rate is 1 or more.
+     * @throws IOException 
+     */
+    public DocSet randomSample( DocSet ds ) throws IOException {
+        double rate = this.conf.sampleRate();
+        if( ds == null || rate >= 1 ) return ds;
+        long seed = this.conf.sampleSeed();
+        DocSet out = this.conf.sampleStratify() ?
+            Samples.stratified( ds, mapField( this.conf.fieldSplit() ), rate, seed ) :
+            Samples.bernoulli( ds, rate, seed );
+        infof( "Sampled %d of %d documents", out.size(), ds.size() );
+        return out;
+    }
+
+    /**
+     * Get this Lector's document set store, holding document sets built by 
+     * {@link #makeDocSet(java.lang.String, java.lang.String)} and 
+     * {@link #makeDocSet(java.lang.String, java.lang.String[])} across sessions.
+     * 
+     * @return A DocSetStore under the configured document set directory.
+     */
+    public DocSetStore docSets() {
+        if( this.dsets == null ) {
+            long budget = this.conf.docSetBudget();
+            this.dsets = new DocSetStore( 
+                this.conf.docSetDir(), this.conf.docSetCache(), budget < 0 ? -1 : budget << 20
+            );
+        }
+        return this.dsets;
+    }
+
     public DocMap<String> mapField( String field ) throws IOException {
         return this.mapCache.computeIfAbsent( field,
-            ( f ) -> buildDocMap( this.indexReader(), f )
+            ( f ) -> buildDocMap( this.reader(), f )
         );
     }
     
+    /**
+     * Get this Lector's composite index reader. Analysis runs over its leaves, one segment at a 
+     * time.
+     * 
+     * @return A DirectoryReader over the configured index.
+     */
+    public DirectoryReader reader() {
+        try {
+            this.dr = this.dr == null ? openReader() : this.dr;
+        } catch( IOException ex ) {
+            Logger.getLogger(Lector.class.getName() ).log( Level.SEVERE, null, ex );
+        }
+        return this.dr;
+    }
+    
+    public DirectoryReader openReader() throws IOException {
+        Path path = this.conf.indexDir();
+        Directory dir = FSDirectory.open( path );
+        return DirectoryReader.open( dir );
+    }
+    
+    /**
+     * Get an atomic view over this Lector's index reader.
+     * 
+     * Merged views are slow; this is only kept for external callers that need a single 
+     * {@link LeafReader}.
+     * 
+     * @return A LeafReader wrapping {@link #reader()}.
+     */
     public LeafReader indexReader() {
         try {
             this.ir = this.ir == null ? openIndex() : this.ir;
@@ -287,9 +622,11 @@ public final class Lector {
     }
     
     public LeafReader openIndex() throws IOException {
-        Path path = this.conf.indexDir();
-        Directory dir = FSDirectory.open( path );
-        return SlowCompositeReaderWrapper.wrap( DirectoryReader.open( dir ) );
+        return SlowCompositeReaderWrapper.wrap( reader() );
+    }
+    
+    public long indexGeneration() throws IOException {
+        return reader().getIndexCommit().getGeneration();
     }
 
     public Lexicon lexicon() {
@@ -304,14 +641,60 @@ public final class Lector {
     public Lexicon buildLexicon() throws IOException {
         String field  = this.conf.fieldTxt();
         int minFrq    = this.conf.minTermFreq();
-        infof( "Building lexicon over %s with minfreq %d", field, minFrq );
-        Lexicon out  = new Lexicon( this.indexReader(), field, minFrq );
+        Path snap     = this.conf.lxcnSnapshot();
+        long gen      = indexGeneration();
+        Lexicon out   = Lexicon.readSnapshot( this.reader(), snap, field, minFrq, gen );
+        if( out != null ) {
+            infof( "Lexicon over %s with minfreq %d loaded from %s", field, minFrq, snap );
+        } else {
+            infof( "Building lexicon over %s with minfreq %d", field, minFrq );
+            out = new Lexicon( this.reader(), field, minFrq );
+            try {
+                Lexicon.writeSnapshot( out, gen, snap );
+            } catch( IOException ex ) {
+                warnf( "Unable to write lexicon snapshot to %s: %s", snap, ex.getMessage() );
+            }
+        }
         infof( "Lexicon contains %d terms with a %4.2f%% coverage over the corpus"
             , out.size(), out.cover() * 100
         );
         return out;
     }
 
+    /**
+     * Get a forward index over this Lector's lexicon.
+     * 
+     * Forward indices are rebuilt whenever the lexicon or the index commit generation change.
+     * 
+     * @return A {@link ForwardIndex} valid for {@link #lexicon()}.
+     */
+    public ForwardIndex forwardIndex() {
+        try {
+            if( this.fwd == null || !this.fwd.matches( lexicon(), indexGeneration() ) ) {
+                if( this.fwd != null ) this.fwd.close();
+                this.fwd = buildForwardIndex();
+            }
+        } catch( IOException ex ) {
+            Logger.getLogger(Lector.class.getName() ).log( Level.SEVERE, null, ex );
+        }
+        return this.fwd;
+    }
+
+    public ForwardIndex buildForwardIndex() throws IOException {
+        Path file     = this.conf.fwdFile();
+        long gen      = indexGeneration();
+        Lexicon lx    = lexicon();
+        ForwardIndex out = ForwardIndex.open( file, lx, gen );
+        if( out != null ) {
+            infof( "Forward index loaded from %s", file );
+        } else {
+            infof( "Building forward index over %s in %s", lx.field(), file );
+            ForwardIndex.build( this.reader(), lx, gen, file );
+            out = ForwardIndex.open( file, lx, gen );
+        }
+        return out;
+    }
+
     public void dumpLexicon( Lexicon lxcn ) throws IOException {
         Path path = this.conf.lxcnFile();
         infof( "Dumping lexicon data to %s", path.toString() );
@@ -324,37 +707,57 @@ public final class Lector {
     
     public void conf( Conf conf ) throws IOException {
         this.conf = conf;
-        this.ir.close();
+        if( this.dr != null ) this.dr.close();
+        this.dr = null;
         this.ir = null;
-        this.ir = indexReader();
+        this.mapCache.clear();
+        if( this.fwd != null ) this.fwd.close();
+        this.fwd = null;
         this.lxcn = null;
         this.lxcn = lexicon();
+        this.dsets = null;
         this.sample = null;
         this.sample = docSample();
     }
     
-    public static <V> DocMap<V> buildDocMap( LeafReader lr, String field ) {
+    public static <V> DocMap<V> buildDocMap( IndexReader ir, String field ) {
         DocMap dm = null;
         try {
+            FieldInfo fi = MultiFields.getMergedFieldInfos( ir ).fieldInfo( field );
+            if( fi != null && fi.getDocValuesType() == DocValuesType.SORTED ) {
+                infof( "Building document map for %s from doc values", field );
+                Stopwatch sw = Stopwatch.createStarted();
+                dm = new DocValuesDocMap( ir, field );
+                infof( "Field %s contains %d output values", field, dm.numOutputs() );
+                infof( "Document map populated in %d millis", sw.elapsed( TimeUnit.MILLISECONDS ) );
+                return dm;
+            }
+            
             infof( "Building document map for %s", field );
 
-            TermsEnum split = lr.terms( field ).iterator();
             SortedSet<String> splits = new TreeSet<>();
-            int tCt = 0;
-            while( split.next() != null ) {
-                splits.add( split.term().utf8ToString() );
-                tCt++;
+            for( LeafReaderContext ctx : ir.leaves() ) {
+                Terms terms = ctx.reader().terms( field );
+                if( terms == null ) continue;
+                TermsEnum split = terms.iterator();
+                while( split.next() != null ) {
+                    splits.add( split.term().utf8ToString() );
+                }
             }
-            infof( "Field %s contains %d output values", field, tCt );
+            infof( "Field %s contains %d output values", field, splits.size() );
 
             Stopwatch sw = Stopwatch.createUnstarted();
 
             dm = new DocMap( splits );
             infof( "Populating map..." );
             sw.start();
-            for( int i = 0; i < lr.maxDoc(); i++ ) {
-                String s = lr.document( i ).getField( field ).stringValue();
-                dm.add( i, s );
+            Set<String> load = Collections.singleton( field );
+            for( LeafReaderContext ctx : ir.leaves() ) {
+                LeafReader lr = ctx.reader();
+                for( int i = 0; i < lr.maxDoc(); i++ ) {
+                    String s = lr.document( i, load ).getField( field ).stringValue();
+                    dm.add( ctx.docBase + i, s );
+                }
             }
             sw.stop();
             infof( "Document map populated in %d millis", sw.elapsed( TimeUnit.MILLISECONDS ) );
@@ -448,7 +851,7 @@ public final class Lector {
 
     // TODO: move this to util clas
     private boolean checkField( String field ) throws IOException {
-        for( String f : this.indexReader().fields() ) {
+        for( String f : MultiFields.getFields( this.reader() ) ) {
             if( f.equals( field ) ) return true;
         }
         return false;
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.corpus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentReader;
+
+/**
+ * Record of the index segments already included in a corpus' persisted counts.
+ *
+ * A state holds the term frequency, document frequency and POS count tables computed over all
+ * counted segments, the split names for frequency columns, and the name, size and number of
+ * deleted documents of each counted segment at the time it was counted, tagged with the index
+ * commit generation and a string describing the counting parameters.
+ *
+ * Segments are immutable in Lucene, except for deletions, so counts can be brought up to date by
+ * counting only segments that are not yet recorded, as returned by
+ * {@link #pending(org.apache.lucene.index.IndexReader)}. If a recorded segment is gone, because
+ * it was merged into a new one, or has new deletions, deltas can't be computed and all counts
+ * must be recomputed.
+ *
+ * The lexicon the counts were computed with is kept as a snapshot next to the state file, see
+ * {@link #lexiconFile(java.nio.file.Path)}.
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public class CorpusState {
+
+    /** State file format version **/
+    public static final int VERSION = 1;
+    /** Extension for lexicon snapshots associated to state files **/
+    public static final String LXCN_EXT = ".lxcn";
+
+    private static final int MAGIC = 0x4c584353; // "LXCS"
+
+    private final String params;
+    private final List<String> cols;
+    private final Map<String,int[]> segs = new LinkedHashMap<>();
+    private long gen = -1;
+    private long[][] tf;
+    private long[][] df;
+    private long[][] posc;
+
+    /**
+     * Create a new state holding the given tables, with no recorded segments.
+     *
+     * @param params A description of the parameters used to compute the given tables.
+     * @param cols   Split names for columns in tf and df.
+     * @param tf     Term frequencies, by lexicon index and split column.
+     * @param df     Document frequencies, by lexicon index and split column.
+     * @param posc   POS counts, by lexicon index and {@link POSClass} ordinal.
+     */
+    public CorpusState( String params, List<String> cols, long[][] tf, long[][] df, long[][] posc ) {
+        this.params = params;
+        this.cols = new ArrayList<>( cols );
+        this.tf = tf;
+        this.df = df;
+        this.posc = posc;
+    }
+
+    /**
+     * Location of the lexicon snapshot for the given state file.
+     * @param file Path to a state file.
+     * @return Path to the corresponding lexicon snapshot.
+     */
+    public static Path lexiconFile( Path file ) {
+        return Paths.get( file.toString() + LXCN_EXT );
+    }
+
+    /**
+     * Name for the given segment.
+     * @param lr A segment reader, possibly wrapped.
+     * @return The segment's name, or {@code null} if lr is not a segment reader.
+     */
+    public static String segmentName( LeafReader lr ) {
+        LeafReader in = FilterLeafReader.unwrap( lr );
+        return in instanceof SegmentReader ? ( (SegmentReader) in ).getSegmentName() : null;
+    }
+
+    /**
+     * Record all segments in the given reader as counted.
+     *
+     * @param ir  An index reader.
+     * @param gen The commit generation of the index opened by ir.
+     */
+    public void record( IndexReader ir, long gen ) {
+        segs.clear();
+        for( LeafReaderContext ctx : ir.leaves() ) {
+            String name = segmentName( ctx.reader() );
+            if( name == null ) throw new IllegalArgumentException( "Reader is not segment-based" );
+            segs.put( name, new int[]{ ctx.reader().maxDoc(), ctx.reader().numDeletedDocs() } );
+        }
+        this.gen = gen;
+    }
+
+    /**
+     * Segments in the given reader that have not been counted yet.
+     *
+     * @param ir An index reader.
+     * @return A list of segments, in reader order, or {@code null} if any recorded segment is
+     *         missing from the given reader or has changed since it was counted.
+     */
+    public List<LeafReaderContext> pending( IndexReader ir ) {
+        Map<String,LeafReaderContext> cur = new HashMap<>();
+        for( LeafReaderContext ctx : ir.leaves() ) {
+            String name = segmentName( ctx.reader() );
+            if( name == null ) return null;
+            cur.put( name, ctx );
+        }
+        for( Map.Entry<String,int[]> e : segs.entrySet() ) {
+            LeafReaderContext ctx = cur.get( e.getKey() );
+            if( ctx == null ) return null;
+            if( ctx.reader().maxDoc() != e.getValue()[0] ) return null;
+            if( ctx.reader().numDeletedDocs() != e.getValue()[1] ) return null;
+        }
+        List<LeafReaderContext> out = new ArrayList<>();
+        for( LeafReaderContext ctx : ir.leaves() ) {
+            if( !segs.containsKey( segmentName( ctx.reader() ) ) ) out.add( ctx );
+        }
+        return out;
+    }
+
+    /**
+     * Add the given tables to this state's tables.
+     *
+     * Frequency columns are matched by split name; splits not seen before are added as new
+     * columns.
+     *
+     * @param cols Split names for columns in tf and df.
+     * @param tf   Term frequencies, by lexicon index and split column.
+     * @param df   Document frequencies, by lexicon index and split column.
+     * @param posc POS counts, by lexicon index and {@link POSClass} ordinal.
+     */
+    public void add( List<String> cols, long[][] tf, long[][] df, long[][] posc ) {
+        int[] map = new int[ cols.size() ];
+        for( int c = 0; c < map.length; c++ ) {
+            int k = this.cols.indexOf( cols.get( c ) );
+            if( k < 0 ) {
+                k = this.cols.size();
+                this.cols.add( cols.get( c ) );
+            }
+            map[c] = k;
+        }
+        this.tf = grow( this.tf, this.cols.size() );
+        this.df = grow( this.df, this.cols.size() );
+        for( int r = 0; r < tf.length; r++ ) {
+            for( int c = 0; c < map.length; c++ ) {
+                this.tf[r][ map[c] ] += tf[r][c];
+                this.df[r][ map[c] ] += df[r][c];
+            }
+            for( int c = 0; c < posc[r].length; c++ ) this.posc[r][c] += posc[r][c];
+        }
+    }
+
+    public String params() {
+        return params;
+    }
+
+    /**
+     * The commit generation of the index this state was last recorded from.
+     * @return An index commit generation, or -1 if no segments have been recorded.
+     */
+    public long generation() {
+        return gen;
+    }
+
+    /**
+     * Number of counted segments.
+     * @return The number of segments recorded in this state.
+     */
+    public int segments() {
+        return segs.size();
+    }
+
+    public List<String> cols() {
+        return cols;
+    }
+
+    public long[][] tf() {
+        return tf;
+    }
+
+    public long[][] df() {
+        return df;
+    }
+
+    public long[][] posc() {
+        return posc;
+    }
+
+    /**
+     * Write the given state to disk.
+     *
+     * The file is written to a temporary location and moved into place when complete.
+     *
+     * @param state A state.
+     * @param file  A file path.
+     * @throws IOException
+     */
+    public static void write( CorpusState state, Path file ) throws IOException {
+        Files.createDirectories( file.toAbsolutePath().getParent() );
+        Path tmp = file.resolveSibling( file.getFileName().toString() + ".tmp" );
+        try( DataOutputStream out = new DataOutputStream( new BufferedOutputStream(
+            Files.newOutputStream( tmp )
+        ) ) ) {
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeUTF( state.params );
+            out.writeLong( state.gen );
+            out.writeInt( state.segs.size() );
+            for( Map.Entry<String,int[]> e : state.segs.entrySet() ) {
+                out.writeUTF( e.getKey() );
+                out.writeInt( e.getValue()[0] );
+                out.writeInt( e.getValue()[1] );
+            }
+            out.writeInt( state.cols.size() );
+            for( String col : state.cols ) out.writeUTF( col );
+            writeTable( out, state.tf );
+            writeTable( out, state.df );
+            writeTable( out, state.posc );
+        }
+        Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING );
+    }
+
+    /**
+     * Read a state from disk.
+     *
+     * @param file A file path.
+     * @return A CorpusState, or {@code null} if no valid state file exists at the given location.
+     * @throws IOException
+     */
+    public static CorpusState read( Path file ) throws IOException {
+        if( !Files.exists( file ) ) return null;
+        try( DataInputStream in = new DataInputStream( new BufferedInputStream(
+            Files.newInputStream( file )
+        ) ) ) {
+            if( in.readInt() != MAGIC ) return null;
+            if( in.readInt() != VERSION ) return null;
+            String params = in.readUTF();
+            long gen = in.readLong();
+            Map<String,int[]> segs = new LinkedHashMap<>();
+            int n = in.readInt();
+            for( int s = 0; s < n; s++ ) {
+                segs.put( in.readUTF(), new int[]{ in.readInt(), in.readInt() } );
+            }
+            List<String> cols = new ArrayList<>();
+            n = in.readInt();
+            for( int c = 0; c < n; c++ ) cols.add( in.readUTF() );
+            CorpusState out = new CorpusState(
+                params, cols, readTable( in ), readTable( in ), readTable( in )
+            );
+            out.segs.putAll( segs );
+            out.gen = gen;
+            return out;
+        }
+    }
+
+    private static long[][] grow( long[][] src, int cols ) {
+        for( int r = 0; r < src.length; r++ ) {
+            if( src[r].length < cols ) src[r] = Arrays.copyOf( src[r], cols );
+        }
+        return src;
+    }
+
+    private static void writeTable( DataOutputStream out, long[][] data ) throws IOException {
+        out.writeInt( data.length );
+        out.writeInt( data.length > 0 ? data[0].length : 0 );
+        for( long[] row : data ) {
+            for( long v : row ) out.writeLong( v );
+        }
+    }
+
+    private static long[][] readTable( DataInputStream in ) throws IOException {
+        long[][] data = new long[ in.readInt() ][ in.readInt() ];
+        for( long[] row : data ) {
+            for( int c = 0; c < row.length; c++ ) row[c] = in.readLong();
+        }
+        return data;
+    }
+}
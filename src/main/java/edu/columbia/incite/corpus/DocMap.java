@@ -31,6 +31,8 @@ import org.apache.lucene.util.fst.FST;
 import org.apache.lucene.util.fst.FST.INPUT_TYPE;
 import org.apache.lucene.util.fst.PositiveIntOutputs;
 import org.apache.lucene.util.fst.Util;
+import org.apache.lucene.util.packed.GrowableWriter;
+import org.apache.lucene.util.packed.PackedInts;
 
 /**
  * Convenience class to construct document maps using Lucene's Finite State Transducers.
@@ -67,6 +69,9 @@ import org.apache.lucene.util.fst.Util;
  * Querying a DocMap before finishing it will result in undefined behavior, but this may change in 
  * future releases to add proper error handling.
  * 
+ * Once finished, the output key for every document is also available as a primitive via 
+ * {@link #ordinal(int)}, backed by a packed int array, for hot loops that only need a column index.
+ * 
  * Instances of this class can also be used as {@link IntFunction} in lambda expressions.
  *
  * @author José Tomás Atria <jtatria@gmail.com>
@@ -74,9 +79,11 @@ import org.apache.lucene.util.fst.Util;
  */
 public class DocMap<T> implements IntFunction<T> {
 
-    private Builder<Long> bldr    = new Builder( INPUT_TYPE.BYTE4, PositiveIntOutputs.getSingleton() );
-    private BiMap<Long,T> outputs = HashBiMap.create();
+    private Builder<Long> bldr;
+    private BiMap<Long,T> outputs;
     private FST<Long> fst;
+    private GrowableWriter ords;
+    private PackedInts.Reader ordinals;
     
     private boolean sorted = true;
     private boolean open   = true;
@@ -102,10 +109,28 @@ public class DocMap<T> implements IntFunction<T> {
      * @param ts A sorted set of known T output values.
      */
     public DocMap( SortedSet<T> ts ) {
+        this( true );
         if( ts == null ) return;
         for( T t : ts ) makeV( t );
     }
     
+    /**
+     * Create a new DocMap, allocating construction state only if it will accept new associations.
+     * 
+     * Subclasses that are populated from some other source and finished on construction should 
+     * call this constructor with {@code false}, to skip allocating the FST builder and ordinal 
+     * buffer. Such subclasses must provide their own implementation of all query methods.
+     * 
+     * @param open {@code true} if associations will be added via {@link #add(int, java.lang.Object)}.
+     */
+    protected DocMap( boolean open ) {
+        this.open = open;
+        if( !open ) return;
+        this.bldr    = new Builder( INPUT_TYPE.BYTE4, PositiveIntOutputs.getSingleton() );
+        this.outputs = HashBiMap.create();
+        this.ords    = new GrowableWriter( 1, 1 << 10, PackedInts.COMPACT );
+    }
+    
     /**
      * Add a new association between the given document number and the given T output value.
      * 
@@ -129,6 +154,8 @@ public class DocMap<T> implements IntFunction<T> {
         if( lastV > v ) this.sorted = false;
         
         bldr.add( makeK( k ), outputs.inverse().get( t ) );
+        if( k >= ords.size() ) ords = ords.resize( Math.max( k + 1, ords.size() << 1 ) );
+        ords.set( k, v + 1 );
         lastK = k;
         lastV = v;
     }
@@ -149,6 +176,8 @@ public class DocMap<T> implements IntFunction<T> {
         this.outputs = ImmutableBiMap.copyOf( outputs );
         this.fst     = bldr.finish();
         this.bldr    = null;
+        this.ordinals = pack( ords, lastK + 1 );
+        this.ords     = null;
     }
     
     /**
@@ -214,6 +243,41 @@ public class DocMap<T> implements IntFunction<T> {
         throw new UnsupportedOperationException( "Not supported yet." );
     }
     
+    /**
+     * Get the output key for the given document number as a primitive int, without traversing 
+     * the underlying FST or looking up the output value.
+     * 
+     * This is equivalent to {@code (int) outputKey( get( doc ) )} and is intended for hot loops 
+     * that use output keys as column indices.
+     * 
+     * @param doc a document number
+     * @return The output key associated to the given document, or -1 if the document has no 
+     *         associated output value.
+     */
+    public int ordinal( int doc ) {
+        if( this.ordinals == null ) throw new IllegalStateException( "Querying unfinished DocMap" );
+        return doc < ordinals.size() ? (int) ordinals.get( doc ) - 1 : -1;
+    }
+    
+    /**
+     * Copy the first {@code size} values in the given packed array to a new fixed-width packed 
+     * array sized to the largest value.
+     * 
+     * @param src  A packed array.
+     * @param size Number of values to copy.
+     * 
+     * @return A read-only packed array.
+     */
+    protected static PackedInts.Reader pack( PackedInts.Reader src, int size ) {
+        long max = 0;
+        for( int i = 0; i < size; i++ ) max = Math.max( max, src.get( i ) );
+        PackedInts.Mutable out = PackedInts.getMutable(
+            size, PackedInts.bitsRequired( max ), PackedInts.FAST
+        );
+        for( int i = 0; i < size; i++ ) out.set( i, src.get( i ) );
+        return out;
+    }
+    
     private IntsRef makeK( int k ) {
         tKey.get().ints[0] = k;
         return tKey.get();
@@ -16,12 +16,22 @@
  */
 package edu.columbia.incite.corpus;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 //import java.util.BitSet;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.function.Predicate;
 
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.ScoreDoc;
@@ -38,12 +48,38 @@ import org.apache.lucene.util.SparseFixedBitSet;
  * This class allows using document iterators as if they were sets, providing methods for 
  * intersecting, filtering, and membership testing.
  * 
+ * Set operations ({@link #and(edu.columbia.incite.corpus.DocSet)}, 
+ * {@link #or(edu.columbia.incite.corpus.DocSet)}, {@link #andNot(edu.columbia.incite.corpus.DocSet)}, 
+ * {@link #xor(edu.columbia.incite.corpus.DocSet)} and {@link #complement()}) never modify their 
+ * operands. Dense operands are combined a 64-bit word at a time; sparse operands are combined by 
+ * walking the set bits of the smaller one. Results are held in a {@link FixedBitSet} or a 
+ * {@link SparseFixedBitSet} depending on their expected density, see {@link #DENSE_RATIO}.
+ * 
+ * DocSets can be serialized with {@link #write(java.io.DataOutput)}, in a Roaring-style format 
+ * that splits the document range in blocks of 2^16 documents and stores each non-empty block 
+ * either as a sorted array of 16-bit offsets or as a bitmap, whichever is smaller.
+ * 
  * Its primary use in this package is to implement corpus sampling.
  * 
  * @author José Tomás Atria <jtatria@gmail.com>
  */
 public class DocSet implements Predicate<Integer>, Iterable<Integer> {
     
+    /** Fraction of set documents above which DocSets are held in a {@link FixedBitSet}. **/
+    public static final double DENSE_RATIO = 1d / 64;
+    /** Serialization format version **/
+    public static final int VERSION = 1;
+    
+    private static final int MAGIC = 0x44534554; // "DSET"
+    // Serialized block size, in bits and 64-bit words.
+    private static final int BLOCK_BITS = 16;
+    private static final int BLOCK_WORDS = ( 1 << BLOCK_BITS ) >>> 6;
+    // Maximum cardinality for blocks stored as arrays: above this, bitmaps are smaller.
+    private static final int ARRAY_MAX = 1 << 12;
+    // Filtered postings leapfrog only if the source costs this many times more than the set bits:
+    // each leapfrog step pays a bitset scan and a postings advance, i.e. several nextDoc calls.
+    private static final int LEAPFROG_RATIO = 16;
+    
     private final BitSet bs;
     private int size = -1;
  
@@ -81,14 +117,28 @@ public class DocSet implements Predicate<Integer>, Iterable<Integer> {
     public DocSet( int maxDoc, boolean sparse ) {
         this.bs = sparse ? new SparseFixedBitSet( maxDoc ) : new FixedBitSet( maxDoc );
     }
+    
+    /**
+     * Create a copy of the given DocSet.
+     * @param src A DocSet.
+     */
+    public DocSet( DocSet src ) {
+        this( copy( src.bs ), src.size() );
+    }
+    
+    private DocSet( BitSet bs, int size ) {
+        this.bs = bs;
+        this.size = size;
+    }
 
     /**
      * Add the given document number to this DocSet.
      * @param doc A document number.
      */
     public void add( int doc ) {
+        if( this.bs.get( doc ) ) return;
         this.bs.set( doc );
-        this.size = -1;
+        if( this.size >= 0 ) this.size++;
     }
 
     /**
@@ -96,8 +146,9 @@ public class DocSet implements Predicate<Integer>, Iterable<Integer> {
      * @param doc A document number.
      */
     public void remove( int doc ) {
+        if( !this.bs.get( doc ) ) return;
         this.bs.clear( doc );
-        this.size = -1;
+        if( this.size >= 0 ) this.size--;
     }
 
     /**
@@ -114,6 +165,28 @@ public class DocSet implements Predicate<Integer>, Iterable<Integer> {
         this.size = -1;
     }
 
+    /**
+     * Add all documents from the given segment-level {@link DocIdSetIterator} instance, offsetting 
+     * its document numbers by the given segment's doc base.
+     * 
+     * The state of the iterator after this method returns is undefined.
+     * 
+     * @param docs    A {@link DocIdSetIterator} instance over a single segment.
+     * @param docBase The segment's doc base, as in {@link LeafReaderContext#docBase}.
+     * @throws IOException
+     */
+    public void add( DocIdSetIterator docs, int docBase ) throws IOException {
+        if( docs == null ) return;
+        if( docBase == 0 ) {
+            add( docs );
+            return;
+        }
+        for( int d = docs.nextDoc(); d != DocIdSetIterator.NO_MORE_DOCS; d = docs.nextDoc() ) {
+            this.bs.set( docBase + d );
+        }
+        this.size = -1;
+    }
+
     /**
      * Produce a {@link PostingsEnum} instance containing only the documents in the given 
      * {@link PostingsEnum} instance that are also contained in this DocSet.
@@ -125,6 +198,20 @@ public class DocSet implements Predicate<Integer>, Iterable<Integer> {
         return new FilteredPostingsEnum( docs, this.bs );
     }
 
+    /**
+     * Produce a {@link PostingsEnum} instance containing only the documents in the given 
+     * segment-level {@link PostingsEnum} instance that are also contained in this DocSet.
+     * 
+     * Document numbers in the returned enum are relative to the given segment.
+     * 
+     * @param docs A {@link PostingsEnum} instance over the given segment.
+     * @param ctx  The segment's {@link LeafReaderContext}.
+     * @return A {@link PostingsEnum} instance containing only documents already in this DocSet
+     */
+    public PostingsEnum filter( PostingsEnum docs, LeafReaderContext ctx ) {
+        return new FilteredPostingsEnum( docs, this.bs, ctx.docBase, ctx.reader().maxDoc() );
+    }
+
     /**
      * Advanced: Get a reference to this DocSet's underlying {@link BitSet}.
      * @return A reference to this DocSet's {@link BitSet}.
@@ -133,12 +220,21 @@ public class DocSet implements Predicate<Integer>, Iterable<Integer> {
         return this.bs;
     }
     
+    /**
+     * Maximum capacity of this DocSet.
+     * @return One plus the largest document number this DocSet can hold.
+     */
+    public int maxDoc() {
+        return this.bs.length();
+    }
+    
     /** 
-     * Get an estimate of the size of this DocSet, i.e. its cardinality; the number of elements 
-     * contained in it.
+     * Get the size of this DocSet, i.e. its cardinality; the number of elements contained in it.
      * 
      * NB: NOT the total capacity, equal to the maximum allowed document.
      * 
+     * The size is cached, and kept up to date by single document additions and removals.
+     * 
      * @return The number of documents that are contained in this DocSet.
      */
     public int size() {
@@ -158,8 +254,8 @@ public class DocSet implements Predicate<Integer>, Iterable<Integer> {
     public int[] vector() {
         int[] out = new int[size()];
         int i = 0;
-        for( int k : this ) {
-            out[i++] = k;
+        for( int d = next( bs, 0 ); d != DocIdSetIterator.NO_MORE_DOCS; d = next( bs, d + 1 ) ) {
+            out[i++] = d;
         }
         return out;
     }
@@ -172,46 +268,149 @@ public class DocSet implements Predicate<Integer>, Iterable<Integer> {
     @Override
     public Iterator<Integer> iterator() {
         return new Iterator<Integer>() {
-            private int cur = -1;
+            private int nxt = DocSet.next( bs, 0 );
 
             @Override
             public boolean hasNext() {
-                return bs.nextSetBit( cur + 1 ) != PostingsEnum.NO_MORE_DOCS;
+                return nxt != DocIdSetIterator.NO_MORE_DOCS;
             }
 
             @Override
             public Integer next() {
-                int nsb = bs.nextSetBit( cur + 1 );
-                if( nsb == PostingsEnum.NO_MORE_DOCS ) throw new NoSuchElementException();
-                cur = nsb;
+                if( nxt == DocIdSetIterator.NO_MORE_DOCS ) throw new NoSuchElementException();
+                int cur = nxt;
+                nxt = DocSet.next( bs, cur + 1 );
                 return cur;
             }
         };
     }
 
-    // TODO: remove pending api
+    /**
+     * Produce a DocSet containing only documents in both this DocSet and the given DocSet.
+     * 
+     * @param oth A DocSet.
+     * @return A new DocSet equal to the intersection of this and oth.
+     */
+    public DocSet and( DocSet oth ) {
+        DocSet sml = this.size() <= oth.size() ? this : oth;
+        DocSet lrg = sml == this ? oth : this;
+        int len = Math.min( this.maxDoc(), oth.maxDoc() );
+        if( dense( sml ) && sml.bs instanceof FixedBitSet && lrg.bs instanceof FixedBitSet ) {
+            // clone the shorter operand, so the result can't hold documents beyond len.
+            FixedBitSet a = (FixedBitSet) ( this.maxDoc() == len ? this.bs : oth.bs );
+            FixedBitSet b = (FixedBitSet) ( a == this.bs ? oth.bs : this.bs );
+            FixedBitSet out = a.clone();
+            out.and( b );
+            return new DocSet( out, -1 );
+        }
+        BitSet out = make( len, sml.size() );
+        int n = 0;
+        for( int d = next( sml.bs, 0 ); d < len; d = next( sml.bs, d + 1 ) ) {
+            if( lrg.bs.get( d ) ) {
+                out.set( d );
+                n++;
+            }
+        }
+        return new DocSet( out, n );
+    }
+    
+    /**
+     * Produce a DocSet containing all documents in this DocSet or in the given DocSet.
+     * 
+     * @param oth A DocSet.
+     * @return A new DocSet equal to the union of this and oth.
+     */
+    public DocSet or( DocSet oth ) {
+        int len = Math.max( this.maxDoc(), oth.maxDoc() );
+        BitSet out = make( len, (long) this.size() + oth.size() );
+        or( out, this );
+        or( out, oth );
+        return new DocSet( out, -1 );
+    }
+
+    /**
+     * Produce a DocSet containing the documents in this DocSet that are not in the given DocSet.
+     * 
+     * @param oth A DocSet.
+     * @return A new DocSet equal to the difference between this and oth.
+     */
+    public DocSet andNot( DocSet oth ) {
+        if( this.bs instanceof FixedBitSet && dense( this ) ) {
+            FixedBitSet out = ( (FixedBitSet) this.bs ).clone();
+            if( oth.bs instanceof FixedBitSet ) {
+                out.andNot( (FixedBitSet) oth.bs );
+            } else {
+                for( int d = next( oth.bs, 0 ); d < out.length(); d = next( oth.bs, d + 1 ) ) {
+                    out.clear( d );
+                }
+            }
+            return new DocSet( out, -1 );
+        }
+        BitSet out = make( this.maxDoc(), this.size() );
+        int n = 0;
+        for( int d = next( this.bs, 0 ); d < this.maxDoc(); d = next( this.bs, d + 1 ) ) {
+            if( d >= oth.maxDoc() || !oth.bs.get( d ) ) {
+                out.set( d );
+                n++;
+            }
+        }
+        return new DocSet( out, n );
+    }
+    
+    /**
+     * Produce a DocSet containing the documents in exactly one of this DocSet and the given 
+     * DocSet.
+     * 
+     * @param oth A DocSet.
+     * @return A new DocSet equal to the symmetric difference between this and oth.
+     */
+    public DocSet xor( DocSet oth ) {
+        int len = Math.max( this.maxDoc(), oth.maxDoc() );
+        long card = (long) this.size() + oth.size();
+        if( card > len * DENSE_RATIO ) {
+            FixedBitSet out = new FixedBitSet( len );
+            or( out, this );
+            if( oth.bs instanceof FixedBitSet ) {
+                out.xor( (FixedBitSet) oth.bs );
+            } else {
+                for( int d = next( oth.bs, 0 ); d < len; d = next( oth.bs, d + 1 ) ) out.flip( d );
+            }
+            return new DocSet( out, -1 );
+        }
+        BitSet out = new SparseFixedBitSet( len );
+        for( int d = next( this.bs, 0 ); d < this.maxDoc(); d = next( this.bs, d + 1 ) ) {
+            if( d >= oth.maxDoc() || !oth.bs.get( d ) ) out.set( d );
+        }
+        for( int d = next( oth.bs, 0 ); d < oth.maxDoc(); d = next( oth.bs, d + 1 ) ) {
+            if( d >= this.maxDoc() || !this.bs.get( d ) ) out.set( d );
+        }
+        return new DocSet( out, -1 );
+    }
+
     /**
      * Produce a DocSet containing only the intersection between this DocSet and the given DocSet.
      * 
-     * There is no guarantee that the returned DocSet instance <em>is or it not</em> equal to this 
-     * instance. See 
-     * {@link #intersect(edu.columbia.incite.corpus.DocSet, edu.columbia.incite.corpus.DocSet) } 
-     * for details.
+     * Equivalent to {@link #and(edu.columbia.incite.corpus.DocSet)}.
      * 
      * @param oth A DocSet
      * @return A DocSet containing only documents that are both in this DocSet and the given oth 
      *         DocSet.
      */
     public DocSet intersect( DocSet oth ) {
-        return intersect( this, oth );
+        return and( oth );
     }
 
     /**    
-     * Produce a DocSet instance that contains all documents <em>not</em> contained in this DocSet.
-     * @return A DocSet equal to this DocSet's complement.
+     * Produce a DocSet instance that contains all documents <em>not</em> contained in this DocSet, 
+     * up to this DocSet's capacity.
+     * @return A new DocSet equal to this DocSet's complement.
      */
     public DocSet complement() {
-        return complement( this );
+        int len = maxDoc();
+        FixedBitSet out = new FixedBitSet( len );
+        or( out, this );
+        if( len > 0 ) out.flip( 0, len );
+        return new DocSet( out, len - size() );
     }
     
     /**
@@ -223,38 +422,181 @@ public class DocSet implements Predicate<Integer>, Iterable<Integer> {
      * @return A DocSet equal to the complement of the {@code src} DocSet.
      */
     public static DocSet complement( DocSet src ) {
-        DocSet tgt = new DocSet( src.bs.length() );
-        for( int d : src ) {
-            if( !src.test( d ) ) tgt.add( d );
-        }
-        return tgt;
+        return src.complement();
     }
     
-    // TODO: add copy constructor for non-destructive set operations.
     /**
      * Produce a DocSet that is equal to the intersection between the two given {@code ds1} and 
      * {@code ds2} DocSet.
      * 
-     * This method must be assumed to operate destructively over the given DocSet references, as 
-     * it does not create a new DocSet, but instead recycles the larger of the given DocSets to 
-     * hold the resulting value, which is then returned. The smaller DocSet should not be modified, 
-     * but callers should not rely on this.
-     * 
-     * This behavior may change in the future, pending an efficient copy-constructor and/or an 
-     * optional parameter. 
+     * Neither of the given DocSets is modified.
      * 
      * @param ds1 A DocSet.
      * @param ds2 A DocSet.
-     * @return The larger of the two given DocSets, but with only documents that were in both 
-     *         DocSets when they were passed to this method.
+     * @return A new DocSet with only documents that are in both given DocSets.
      */
     public static DocSet intersect( DocSet ds1, DocSet ds2 ) {
-        DocSet tgt = ds1.size() > ds2.size() ? ds2 : ds1;
-        DocSet src = tgt == ds1 ? ds2 : ds1;
-        for( int d : tgt ) {
-            if( !src.test( d ) ) tgt.remove( d );
+        return ds1.and( ds2 );
+    }
+    
+    /**
+     * Write this DocSet to the given output.
+     * 
+     * Documents are written in blocks of 2^16 consecutive document numbers. Each non-empty block 
+     * is written as its block number and cardinality, followed by its set documents' offsets as 
+     * 16-bit values if it holds no more than 4096 documents, or by a 1024-word bitmap otherwise.
+     * 
+     * @param out A DataOutput.
+     * @throws IOException 
+     */
+    public void write( DataOutput out ) throws IOException {
+        out.writeInt( MAGIC );
+        out.writeInt( VERSION );
+        out.writeInt( maxDoc() );
+        out.writeInt( size() );
+        long[] words = new long[ BLOCK_WORDS ];
+        char[] offs = new char[ ARRAY_MAX ];
+        int d = next( bs, 0 );
+        while( d != DocIdSetIterator.NO_MORE_DOCS ) {
+            int key = d >>> BLOCK_BITS;
+            long end = (long) ( key + 1 ) << BLOCK_BITS;
+            int card = 0;
+            Arrays.fill( words, 0 );
+            for( ; d != DocIdSetIterator.NO_MORE_DOCS && d < end; d = next( bs, d + 1 ) ) {
+                int o = d & ( ( 1 << BLOCK_BITS ) - 1 );
+                words[ o >>> 6 ] |= 1l << o;
+                if( card < ARRAY_MAX ) offs[card] = (char) o;
+                card++;
+            }
+            out.writeInt( key );
+            out.writeInt( card );
+            if( card <= ARRAY_MAX ) {
+                for( int i = 0; i < card; i++ ) out.writeChar( offs[i] );
+            } else {
+                for( long w : words ) out.writeLong( w );
+            }
+        }
+        out.writeInt( -1 );
+    }
+    
+    /**
+     * Read a DocSet from the given input, as written by {@link #write(java.io.DataOutput)}.
+     * 
+     * @param in A DataInput.
+     * @return A new DocSet.
+     * @throws IOException If the input does not contain a valid DocSet.
+     */
+    public static DocSet read( DataInput in ) throws IOException {
+        if( in.readInt() != MAGIC ) throw new IOException( "Input does not contain a DocSet" );
+        int version = in.readInt();
+        if( version != VERSION ) throw new IOException( String.format( 
+            "Unsupported DocSet format version %d", version 
+        ) );
+        int len = in.readInt();
+        int size = in.readInt();
+        BitSet bs = make( len, size );
+        long[] bits = bs instanceof FixedBitSet ? ( (FixedBitSet) bs ).getBits() : null;
+        for( int key = in.readInt(); key >= 0; key = in.readInt() ) {
+            int base = key << BLOCK_BITS;
+            int card = in.readInt();
+            if( card <= ARRAY_MAX ) {
+                for( int i = 0; i < card; i++ ) bs.set( base + in.readChar() );
+            } else {
+                for( int w = 0; w < BLOCK_WORDS; w++ ) {
+                    long word = in.readLong();
+                    int k = ( base >>> 6 ) + w;
+                    if( bits != null ) {
+                        if( k < bits.length ) bits[k] = word;
+                    } else {
+                        for( ; word != 0; word &= word - 1 ) {
+                            bs.set( ( k << 6 ) + Long.numberOfTrailingZeros( word ) );
+                        }
+                    }
+                }
+            }
+        }
+        return new DocSet( bs, size );
+    }
+    
+    /**
+     * Write the given DocSet to the given file.
+     * 
+     * @param ds   A DocSet.
+     * @param file A file path.
+     * @throws IOException 
+     */
+    public static void write( DocSet ds, Path file ) throws IOException {
+        try( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( 
+            Files.newOutputStream( file ) 
+        ) ) ) {
+            ds.write( out );
+        }
+    }
+    
+    /**
+     * Read a DocSet from the given file.
+     * 
+     * @param file A file path.
+     * @return A new DocSet.
+     * @throws IOException 
+     */
+    public static DocSet read( Path file ) throws IOException {
+        try( DataInputStream in = new DataInputStream( new BufferedInputStream( 
+            Files.newInputStream( file ) 
+        ) ) ) {
+            return read( in );
+        }
+    }
+    
+    /**
+     * Next set bit at or after the given index, or {@link DocIdSetIterator#NO_MORE_DOCS}.
+     */
+    private static int next( BitSet bs, int from ) {
+        return from < bs.length() ? bs.nextSetBit( from ) : DocIdSetIterator.NO_MORE_DOCS;
+    }
+    
+    /**
+     * Whether word-parallel operations are cheaper than walking the given DocSet's set bits.
+     */
+    private static boolean dense( DocSet ds ) {
+        return ds.size() > ds.maxDoc() * DENSE_RATIO;
+    }
+    
+    /**
+     * Create an empty bitset of the given length for the given expected cardinality.
+     */
+    private static BitSet make( int len, long card ) {
+        return card > len * DENSE_RATIO ? new FixedBitSet( len ) : new SparseFixedBitSet( len );
+    }
+    
+    private static BitSet copy( BitSet src ) {
+        if( src instanceof FixedBitSet ) return ( (FixedBitSet) src ).clone();
+        BitSet out = new SparseFixedBitSet( src.length() );
+        or( out, src );
+        return out;
+    }
+    
+    private static void or( BitSet tgt, DocSet src ) {
+        or( tgt, src.bs );
+    }
+    
+    private static void or( BitSet tgt, BitSet src ) {
+        if( tgt instanceof FixedBitSet && src instanceof FixedBitSet ) {
+            ( (FixedBitSet) tgt ).or( (FixedBitSet) src );
+            return;
         }
-        return tgt;
+        for( int d = next( src, 0 ); d < src.length(); d = next( src, d + 1 ) ) tgt.set( d );
+    }
+    
+    /**
+     * Estimated number of bits set in the given range of the given bitset.
+     * 
+     * Uses this DocSet's cached size if the bitset is this DocSet's, assuming set bits are evenly 
+     * distributed across the whole range; falls back to the bitset's approximate cardinality.
+     */
+    private long estimate( BitSet bits, int from, int to ) {
+        long card = bits == this.bs ? size() : bits.approximateCardinality();
+        return bits.length() == 0 ? 0 : card * ( to - from ) / bits.length() + 1;
     }
     
     /**
@@ -262,17 +604,39 @@ public class DocSet implements Predicate<Integer>, Iterable<Integer> {
      * 
      * Lucene's BitSet filtering facilities only apply to DocIdSetIterators. This class implements 
      * all of PostingsEnum methods to allow access to position and payload data.
+     * 
+     * Source enumerations over a single segment are supported by giving the segment's doc base 
+     * and size: bits are looked up at {@code base + doc} and only bits in the segment's range 
+     * are considered.
+     * 
+     * Iteration is driven by whichever side is expected to be sparser: unless the source 
+     * enumeration is much more expensive than the number of set bits in range (see 
+     * {@link #LEAPFROG_RATIO}), source documents are tested against the bitset; otherwise, the enumeration leapfrogs between the bitset's next set bit and the 
+     * source's next document until both agree. The cost is computed once on construction.
      */
     public class FilteredPostingsEnum extends PostingsEnum {
 
         private final BitSet bs;
         private final PostingsEnum src;
+        private final int base;
+        private final int limit;
+        private final long cost;
+        private final boolean drivePostings;
 
         private int doc = -1;
 
         public FilteredPostingsEnum( PostingsEnum pEnum, BitSet bs ) {
+            this( pEnum, bs, 0, bs.length() );
+        }
+
+        public FilteredPostingsEnum( PostingsEnum pEnum, BitSet bs, int base, int maxDoc ) {
             this.src = pEnum;
             this.bs = bs;
+            this.base = base;
+            this.limit = Math.min( base + maxDoc, bs.length() );
+            long bits = estimate( bs, base, limit );
+            this.drivePostings = pEnum.cost() <= bits * LEAPFROG_RATIO;
+            this.cost = Math.min( pEnum.cost(), bits );
         }
 
         @Override
@@ -282,36 +646,36 @@ public class DocSet implements Predicate<Integer>, Iterable<Integer> {
 
         @Override
         public int nextDoc() throws IOException {
-            return advance( doc + 1 );
+            if( doc == PostingsEnum.NO_MORE_DOCS ) return doc;
+            return drivePostings ? filter( src.nextDoc() ) : leapfrog( doc + 1 );
         }
 
-        // TODO: profile and optimize.
         @Override
         public int advance( int target ) throws IOException {
-            while( doc != PostingsEnum.NO_MORE_DOCS ) {
-                // get next bit.
-                int nb = bs.nextSetBit( target );
-                if( nb == PostingsEnum.NO_MORE_DOCS ) {
-                    doc = PostingsEnum.NO_MORE_DOCS;
-                    break;
-                }
+            if( doc == PostingsEnum.NO_MORE_DOCS ) return doc;
+            return drivePostings ? filter( src.advance( target ) ) : leapfrog( target );
+        }
 
-                // get next doc
-                int nd = src.advance( nb );
-                if( nd > bs.length() ) {
-                    doc = PostingsEnum.NO_MORE_DOCS;
-                    break;
-                }
+        // Skip source documents that are not in the bitset, starting from the given one.
+        private int filter( int nd ) throws IOException {
+            while( nd != PostingsEnum.NO_MORE_DOCS && base + nd < limit ) {
+                if( bs.get( base + nd ) ) return doc = nd;
+                nd = src.nextDoc();
+            }
+            return doc = PostingsEnum.NO_MORE_DOCS;
+        }
 
-                // if next doc is bit, return
-                if( bs.get( nd ) ) {
-                    doc = nd;
-                    break;
-                } else { // search from next bit.
-                    target = ++nd;
-                }
+        // Alternate between the next set bit and the next source document until they are equal.
+        private int leapfrog( int target ) throws IOException {
+            while( base + target < limit ) {
+                int nb = bs.nextSetBit( base + target );
+                if( nb >= limit ) break;
+                int nd = src.docID() >= nb - base ? src.docID() : src.advance( nb - base );
+                if( nd == PostingsEnum.NO_MORE_DOCS ) break;
+                if( nd == nb - base ) return doc = nd;
+                target = nd;
             }
-            return doc;
+            return doc = PostingsEnum.NO_MORE_DOCS;
         }
 
         // NOTE Advance logic for java bitsets, which use different sentinels than lucene bitsets.
@@ -345,7 +709,7 @@ public class DocSet implements Predicate<Integer>, Iterable<Integer> {
 //        }
 
         @Override public long cost() {
-            return bs.cardinality();
+            return cost;
         }
 
         @Override public int freq() throws IOException { return src.freq(); }
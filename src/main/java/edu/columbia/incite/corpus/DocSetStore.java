@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.corpus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * Size-bounded store of named document sets.
+ *
+ * Sets are stored under a string key describing how they were built, e.g. a field and a term
+ * pattern, and the commit generation of the index they were built from. A set is only returned
+ * for the same key and generation it was stored with, so sets computed over an older commit are
+ * never used.
+ *
+ * The most recently used sets are kept in memory, up to a maximum number of entries. All stored
+ * sets are also written to disk, in {@link DocSet#write(java.io.DataOutput)} format, and
+ * loaded lazily when they are not found in memory, so they survive across sessions. When the
+ * files in the store's directory exceed the disk budget, the least recently used ones are
+ * deleted.
+ *
+ * Callers always get copies of stored sets, and may modify them freely.
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public class DocSetStore {
+
+    /** Extension for stored document set files **/
+    public static final String EXT = ".dset";
+
+    private static final int MAGIC = 0x44535354; // "DSST"
+
+    private final Path dir;
+    private final int capacity;
+    private final long budget;
+    private final Map<String,DocSet> mem = new LinkedHashMap<>( 16, .75f, true );
+
+    /**
+     * Create a new store.
+     *
+     * @param dir      Directory for stored sets. Created if it doesn't exist.
+     * @param capacity Maximum number of sets held in memory.
+     * @param budget   Maximum total size of stored set files in bytes. 0 for unbounded, negative
+     *                 to disable disk storage.
+     */
+    public DocSetStore( Path dir, int capacity, long budget ) {
+        this.dir = dir;
+        this.capacity = capacity;
+        this.budget = budget;
+    }
+
+    /**
+     * Get the set stored under the given key for the given index generation.
+     *
+     * @param key A key.
+     * @param gen An index commit generation.
+     * @return A copy of the stored DocSet, or {@code null} if there is no set stored under the
+     *         given key and generation.
+     * @throws IOException
+     */
+    public synchronized DocSet get( String key, long gen ) throws IOException {
+        DocSet ds = mem.get( memKey( key, gen ) );
+        if( ds == null ) {
+            ds = load( key, gen );
+            if( ds == null ) return null;
+            mem.put( memKey( key, gen ), ds );
+            trim();
+        }
+        return new DocSet( ds );
+    }
+
+    /**
+     * Store the given set under the given key for the given index generation, replacing sets
+     * stored under the same key for any generation.
+     *
+     * @param key A key.
+     * @param gen An index commit generation.
+     * @param ds  A DocSet. The store keeps a copy.
+     * @throws IOException
+     */
+    public synchronized void put( String key, long gen, DocSet ds ) throws IOException {
+        DocSet copy = new DocSet( ds );
+        mem.keySet().removeIf( ( k ) -> k.endsWith( "\u0000" + key ) );
+        mem.put( memKey( key, gen ), copy );
+        trim();
+        if( budget < 0 ) return;
+        save( key, gen, copy );
+        prune();
+    }
+
+    /**
+     * Get the set stored under the given key for the given index generation, building and storing
+     * it with the given builder if not found.
+     *
+     * @param key  A key.
+     * @param gen  An index commit generation.
+     * @param bldr A DocSet builder.
+     * @return A DocSet.
+     * @throws IOException
+     */
+    public DocSet get( String key, long gen, Builder bldr ) throws IOException {
+        DocSet ds = get( key, gen );
+        if( ds == null ) {
+            ds = bldr.build();
+            if( ds != null ) put( key, gen, ds );
+        }
+        return ds;
+    }
+
+    /**
+     * Remove all sets from memory and disk.
+     *
+     * @throws IOException
+     */
+    public synchronized void clear() throws IOException {
+        mem.clear();
+        for( Path file : files() ) Files.deleteIfExists( file );
+    }
+
+    private DocSet load( String key, long gen ) throws IOException {
+        if( budget < 0 ) return null;
+        Path file = file( key, gen );
+        if( !Files.exists( file ) ) return null;
+        try( DataInputStream in = new DataInputStream( new BufferedInputStream(
+            Files.newInputStream( file )
+        ) ) ) {
+            if( in.readInt() != MAGIC ) return null;
+            if( in.readLong() != gen ) return null;
+            byte[] bytes = new byte[ in.readInt() ];
+            in.readFully( bytes );
+            if( !key.equals( new String( bytes, StandardCharsets.UTF_8 ) ) ) return null;
+            DocSet ds = DocSet.read( in );
+            Files.setLastModifiedTime( file, FileTime.fromMillis( System.currentTimeMillis() ) );
+            return ds;
+        }
+    }
+
+    private void save( String key, long gen, DocSet ds ) throws IOException {
+        Files.createDirectories( dir );
+        String hash = hash( key );
+        try( DirectoryStream<Path> old = Files.newDirectoryStream( dir, hash + ".*" + EXT ) ) {
+            for( Path file : old ) Files.deleteIfExists( file );
+        }
+        Path file = file( key, gen );
+        Path tmp = file.resolveSibling( file.getFileName().toString() + ".tmp" );
+        try( DataOutputStream out = new DataOutputStream( new BufferedOutputStream(
+            Files.newOutputStream( tmp )
+        ) ) ) {
+            out.writeInt( MAGIC );
+            out.writeLong( gen );
+            byte[] bytes = key.getBytes( StandardCharsets.UTF_8 );
+            out.writeInt( bytes.length );
+            out.write( bytes );
+            ds.write( out );
+        }
+        Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING );
+    }
+
+    // Delete least recently used files until the store is within budget.
+    private void prune() throws IOException {
+        if( budget <= 0 ) return;
+        List<Path> files = files();
+        long total = 0;
+        for( Path file : files ) total += Files.size( file );
+        if( total <= budget ) return;
+        files.sort( Comparator.comparing( ( f ) -> {
+            try {
+                return Files.getLastModifiedTime( f );
+            } catch( IOException ex ) {
+                return FileTime.fromMillis( 0 );
+            }
+        } ) );
+        for( Iterator<Path> it = files.iterator(); total > budget && it.hasNext(); ) {
+            Path file = it.next();
+            total -= Files.size( file );
+            Files.deleteIfExists( file );
+        }
+    }
+
+    private List<Path> files() throws IOException {
+        List<Path> out = new ArrayList<>();
+        if( !Files.isDirectory( dir ) ) return out;
+        try( DirectoryStream<Path> ds = Files.newDirectoryStream( dir, "*" + EXT ) ) {
+            for( Path file : ds ) out.add( file );
+        }
+        return out;
+    }
+
+    private void trim() {
+        Iterator<String> it = mem.keySet().iterator();
+        while( mem.size() > Math.max( capacity, 0 ) && it.hasNext() ) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private Path file( String key, long gen ) {
+        return dir.resolve( String.format( "%s.%d%s", hash( key ), gen, EXT ) );
+    }
+
+    private static String memKey( String key, long gen ) {
+        return gen + "\u0000" + key;
+    }
+
+    private static String hash( String key ) {
+        return Hashing.murmur3_128().hashString( key, StandardCharsets.UTF_8 ).toString();
+    }
+
+    /**
+     * Builder for DocSets not found in a store.
+     */
+    @FunctionalInterface
+    public interface Builder {
+        DocSet build() throws IOException;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.corpus;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.google.common.collect.BiMap;
+import com.google.common.collect.ImmutableBiMap;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiDocValues.OrdinalMap;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.util.LongValues;
+import org.apache.lucene.util.packed.PackedInts;
+
+/**
+ * A {@link DocMap} populated directly from a field's {@link SortedDocValues} column.
+ *
+ * Output keys are the doc values' ordinals, so outputs are sorted in the column's byte order and
+ * bidirectional retrieval is preserved. Construction reads one ordinal per document from each 
+ * segment's column; no stored fields are decoded and no FST is built. Segment ordinals are mapped 
+ * to global ordinals with an {@link OrdinalMap} when the reader has more than one segment.
+ *
+ * Instances are finished on construction. Documents without a value for the field map to
+ * {@code null}.
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public class DocValuesDocMap extends DocMap<String> {
+
+    private final PackedInts.Reader ords;
+    private final String[] values;
+    private final BiMap<Long,String> outputs;
+
+    /**
+     * Create a new DocMap for the given field's sorted doc values in the given reader.
+     *
+     * @param ir    An IndexReader.
+     * @param field A field name. Must have been indexed with {@link SortedDocValues}.
+     *
+     * @throws IOException If the doc values column can't be read.
+     */
+    public DocValuesDocMap( IndexReader ir, String field ) throws IOException {
+        super( false );
+        List<LeafReaderContext> leaves = ir.leaves();
+        SortedDocValues[] dvs = new SortedDocValues[ leaves.size() ];
+        for( int k = 0; k < dvs.length; k++ ) {
+            dvs[k] = DocValues.getSorted( leaves.get( k ).reader(), field );
+        }
+        OrdinalMap map = dvs.length > 1 ? OrdinalMap.build( null, dvs, PackedInts.DEFAULT ) : null;
+
+        this.values = new String[ map != null ? (int) map.getValueCount() : 
+            dvs.length == 1 ? dvs[0].getValueCount() : 0 
+        ];
+        ImmutableBiMap.Builder<Long,String> bldr = ImmutableBiMap.builder();
+        for( int o = 0; o < values.length; o++ ) {
+            values[o] = map != null ?
+                dvs[ map.getFirstSegmentNumber( o ) ].lookupOrd(
+                    (int) map.getFirstSegmentOrd( o ) 
+                ).utf8ToString() :
+                dvs[0].lookupOrd( o ).utf8ToString();
+            bldr.put( (long) o, values[o] );
+        }
+        this.outputs = bldr.build();
+
+        PackedInts.Mutable tmp = PackedInts.getMutable(
+            ir.maxDoc(), PackedInts.bitsRequired( values.length ), PackedInts.FAST
+        );
+        for( int k = 0; k < dvs.length; k++ ) {
+            int base = leaves.get( k ).docBase;
+            int maxDoc = leaves.get( k ).reader().maxDoc();
+            LongValues global = map != null ? map.getGlobalOrds( k ) : LongValues.IDENTITY;
+            for( int i = 0; i < maxDoc; i++ ) {
+                int ord = dvs[k].getOrd( i );
+                tmp.set( base + i, ord < 0 ? 0 : global.get( ord ) + 1 );
+            }
+        }
+        this.ords = tmp;
+    }
+
+    @Override
+    public void add( int k, String t ) throws IOException {
+        throw new UnsupportedOperationException( "DocValues DocMaps are read-only" );
+    }
+
+    @Override
+    public void finish() throws IOException {
+        throw new UnsupportedOperationException( "Attempting to finish finished DocMap" );
+    }
+
+    @Override
+    public BiMap<Long,String> outputMap() {
+        return outputs;
+    }
+
+    @Override
+    public int numOutputs() {
+        return values.length;
+    }
+
+    @Override
+    public long outputKey( String output ) {
+        return outputs.inverse().get( output );
+    }
+
+    @Override
+    public boolean sorted() {
+        return true;
+    }
+
+    @Override
+    public int ordinal( int doc ) {
+        return (int) ords.get( doc ) - 1;
+    }
+
+    @Override
+    public String get( int doc ) throws IOException {
+        int ord = ordinal( doc );
+        return ord < 0 ? null : values[ord];
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.corpus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+
+/**
+ * Memory-mapped forward index over a {@link Lexicon}.
+ *
+ * A forward index stores, for each document, the sequence of lexicon indices found at each
+ * position of the lexicon's field, with {@link #NO_TERM} at positions occupied by terms that are
+ * not in the lexicon. Sequences run up to the last position holding a lexicon term, so reading a
+ * document produces exactly the position buffer that would be reconstructed from its term vector,
+ * as a single contiguous copy.
+ *
+ * Files consist of a header, tagged with the index commit generation and the lexicon's
+ * {@link Lexicon#fingerprint()}, followed by a table of {@code maxDoc + 1} sequence offsets and
+ * the concatenated sequences. The offset table is loaded in the heap; sequences are
+ * memory-mapped in windows of at most {@link #CHUNK_SIZE} bytes. Files are built from the
+ * field's postings, so documents need not have term vectors.
+ *
+ * Instances of this class are thread-safe, as all reads are absolute.
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public class ForwardIndex implements Closeable {
+
+    /** File format version **/
+    public static final int VERSION = 1;
+    /** Value stored at positions with no lexicon term **/
+    public static final int NO_TERM = -1;
+    /** Maximum size for each mapped window, in bytes. Always a multiple of the value size. **/
+    public static final long CHUNK_SIZE = ( Integer.MAX_VALUE / Integer.BYTES ) * (long) Integer.BYTES;
+
+    private static final long MAGIC = 0x4c5846574958315fl; // "LXFWIX1_"
+    private static final long INTS_PER_CHUNK = CHUNK_SIZE / Integer.BYTES;
+    // magic, version, generation, fingerprint, maxDoc, total length.
+    private static final int HEADER_SIZE = Long.BYTES * 4 + Integer.BYTES * 2;
+
+    private final long gen;
+    private final long fprint;
+    private final long[] offsets;
+    private final IntBuffer[] chunks;
+
+    private ForwardIndex( Path file, long gen, long fprint, long[] offsets ) throws IOException {
+        this.gen = gen;
+        this.fprint = fprint;
+        this.offsets = offsets;
+        try( FileChannel fc = FileChannel.open( file, StandardOpenOption.READ ) ) {
+            this.chunks = map( fc, FileChannel.MapMode.READ_ONLY,
+                dataStart( offsets.length - 1 ), offsets[ offsets.length - 1 ]
+            );
+        }
+    }
+
+    /**
+     * Open the forward index at the given location, if it exists and was built for the given
+     * lexicon and index commit generation.
+     *
+     * @param file A forward index file path.
+     * @param lxcn The lexicon the forward index should have been built for.
+     * @param gen  The commit generation of the index the lexicon was built from.
+     * @return A ForwardIndex, or {@code null} if no valid forward index exists at the given
+     * location.
+     * @throws IOException
+     */
+    public static ForwardIndex open( Path file, Lexicon lxcn, long gen ) throws IOException {
+        if( !Files.exists( file ) ) return null;
+        long[] offsets;
+        try( DataInputStream in = new DataInputStream( new BufferedInputStream(
+            Files.newInputStream( file )
+        ) ) ) {
+            if( in.readLong() != MAGIC ) return null;
+            if( in.readInt() != VERSION ) return null;
+            if( in.readLong() != gen ) return null;
+            if( in.readLong() != lxcn.fingerprint() ) return null;
+            offsets = new long[ in.readInt() + 1 ];
+            long total = in.readLong();
+            for( int d = 0; d < offsets.length; d++ ) offsets[d] = in.readLong();
+            if( offsets[ offsets.length - 1 ] != total ) return null;
+        }
+        // Truncated files are stale.
+        long size = dataStart( offsets.length - 1 ) + total( offsets ) * Integer.BYTES;
+        if( Files.size( file ) != size ) return null;
+        return new ForwardIndex( file, gen, lxcn.fingerprint(), offsets );
+    }
+
+    /**
+     * Build a forward index for the given lexicon from the postings in the given reader and
+     * write it to the given location.
+     *
+     * Segments are processed in parallel, with two passes over each segment's lexicon postings:
+     * one to measure sequences and one to fill them. The file is written to a temporary location
+     * and moved into place when complete.
+     *
+     * @param ir   An index reader.
+     * @param lxcn A lexicon over a field in ir, built with positions.
+     * @param gen  The commit generation of the index opened by ir.
+     * @param file A file path.
+     * @throws IOException
+     */
+    public static void build( IndexReader ir, Lexicon lxcn, long gen, Path file ) throws IOException {
+        int maxDoc = ir.maxDoc();
+        int[] lens = new int[ maxDoc ];
+        forEachLeaf( ir, ( ctx ) -> measure( ctx, lxcn, lens ) );
+        long[] offsets = new long[ maxDoc + 1 ];
+        for( int d = 0; d < maxDoc; d++ ) offsets[d + 1] = offsets[d] + lens[d];
+
+        Path tmp = file.resolveSibling( file.getFileName().toString() + ".tmp" );
+        Files.createDirectories( file.toAbsolutePath().getParent() );
+        try( DataOutputStream out = new DataOutputStream( new BufferedOutputStream(
+            Files.newOutputStream( tmp )
+        ) ) ) {
+            out.writeLong( MAGIC );
+            out.writeInt( VERSION );
+            out.writeLong( gen );
+            out.writeLong( lxcn.fingerprint() );
+            out.writeInt( maxDoc );
+            out.writeLong( offsets[maxDoc] );
+            for( int d = 0; d <= maxDoc; d++ ) out.writeLong( offsets[d] );
+        }
+        try( FileChannel fc = FileChannel.open(
+            tmp, StandardOpenOption.READ, StandardOpenOption.WRITE
+        ) ) {
+            MappedByteBuffer[] mbbs = new MappedByteBuffer[ chunks( offsets[maxDoc] ) ];
+            IntBuffer[] data = map( fc, FileChannel.MapMode.READ_WRITE,
+                dataStart( maxDoc ), offsets[maxDoc], mbbs
+            );
+            forEachLeaf( ir, ( ctx ) -> fill( ctx, lxcn, offsets, data ) );
+            for( MappedByteBuffer mbb : mbbs ) mbb.force();
+        }
+        Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING );
+    }
+
+    /**
+     * Number of documents in this forward index.
+     * @return The maxDoc of the index this forward index was built from.
+     */
+    public int maxDoc() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * The index commit generation this forward index was built from.
+     * @return An index commit generation.
+     */
+    public long generation() {
+        return gen;
+    }
+
+    /**
+     * Check that this forward index is valid for the given lexicon and commit generation.
+     *
+     * @param lxcn A lexicon.
+     * @param gen  An index commit generation.
+     * @return {@code true} if this forward index was built for the given lexicon and generation.
+     */
+    public boolean matches( Lexicon lxcn, long gen ) {
+        return this.gen == gen && this.fprint == lxcn.fingerprint();
+    }
+
+    /**
+     * Length of the given document's sequence.
+     * @param doc A document number.
+     * @return One plus the last position holding a lexicon term in the given document, or zero
+     * if the document contains no lexicon terms.
+     */
+    public int length( int doc ) {
+        return (int) ( offsets[doc + 1] - offsets[doc] );
+    }
+
+    /**
+     * Copy the given document's sequence to the start of the given buffer.
+     *
+     * @param doc A document number.
+     * @param dst A buffer with room for at least {@link #length(int)} values.
+     * @return The number of values copied.
+     */
+    public int read( int doc, int[] dst ) {
+        long k = offsets[doc];
+        int len = length( doc );
+        int done = 0;
+        while( done < len ) {
+            IntBuffer ib = chunks[ (int) ( k / INTS_PER_CHUNK ) ].duplicate();
+            int slot = (int) ( k % INTS_PER_CHUNK );
+            int n = Math.min( len - done, ib.limit() - slot );
+            ib.position( slot );
+            ib.get( dst, done, n );
+            done += n;
+            k += n;
+        }
+        return len;
+    }
+
+    @Override
+    public void close() {
+        // Mapped buffers are released when collected.
+        for( int c = 0; c < chunks.length; c++ ) chunks[c] = null;
+    }
+
+    private static void measure( LeafReaderContext ctx, Lexicon lxcn, int[] lens )
+    throws IOException {
+        Terms terms = ctx.reader().terms( lxcn.field() );
+        if( terms == null ) return;
+        TermsEnum tEnum = lxcn.filter( terms );
+        PostingsEnum p = null;
+        while( tEnum.next() != null ) {
+            p = tEnum.postings( p, PostingsEnum.POSITIONS );
+            while( p.nextDoc() != PostingsEnum.NO_MORE_DOCS ) {
+                int f = p.freq();
+                int pos = -1;
+                // Positions are ascending, so the last one is the term's maximum.
+                for( int i = 0; i < f; i++ ) pos = p.nextPosition();
+                int d = ctx.docBase + p.docID();
+                if( pos >= lens[d] ) lens[d] = pos + 1;
+            }
+        }
+    }
+
+    private static void fill( LeafReaderContext ctx, Lexicon lxcn, long[] offsets, IntBuffer[] data )
+    throws IOException {
+        long lo = offsets[ ctx.docBase ];
+        long hi = offsets[ ctx.docBase + ctx.reader().maxDoc() ];
+        for( long k = lo; k < hi; k++ ) put( data, k, NO_TERM );
+        Terms terms = ctx.reader().terms( lxcn.field() );
+        if( terms == null ) return;
+        TermsEnum tEnum = lxcn.filter( terms );
+        PostingsEnum p = null;
+        int rank = -1;
+        while( tEnum.next() != null ) {
+            rank = lxcn.rank( tEnum.term(), rank + 1 );
+            int t = lxcn.byRank( rank );
+            p = tEnum.postings( p, PostingsEnum.POSITIONS );
+            while( p.nextDoc() != PostingsEnum.NO_MORE_DOCS ) {
+                long base = offsets[ ctx.docBase + p.docID() ];
+                int f = p.freq();
+                for( int i = 0; i < f; i++ ) put( data, base + p.nextPosition(), t );
+            }
+        }
+    }
+
+    private static void put( IntBuffer[] data, long k, int v ) {
+        data[ (int) ( k / INTS_PER_CHUNK ) ].put( (int) ( k % INTS_PER_CHUNK ), v );
+    }
+
+    private static void forEachLeaf( IndexReader ir, LeafTask task ) throws IOException {
+        try {
+            ir.leaves().parallelStream().forEach( ( ctx ) -> {
+                try {
+                    task.run( ctx );
+                } catch( IOException ex ) {
+                    throw new UncheckedIOException( ex );
+                }
+            } );
+        } catch( UncheckedIOException ex ) {
+            throw ex.getCause();
+        }
+    }
+
+    private static IntBuffer[] map( FileChannel fc, FileChannel.MapMode mode, long start, long len )
+    throws IOException {
+        return map( fc, mode, start, len, new MappedByteBuffer[ chunks( len ) ] );
+    }
+
+    private static IntBuffer[] map(
+        FileChannel fc, FileChannel.MapMode mode, long start, long len, MappedByteBuffer[] mbbs
+    ) throws IOException {
+        long size = len * Integer.BYTES;
+        IntBuffer[] out = new IntBuffer[ mbbs.length ];
+        for( int c = 0; c < mbbs.length; c++ ) {
+            long pos = c * CHUNK_SIZE;
+            mbbs[c] = fc.map( mode, start + pos, Math.min( CHUNK_SIZE, size - pos ) );
+            mbbs[c].order( ByteOrder.nativeOrder() );
+            out[c] = mbbs[c].asIntBuffer();
+        }
+        return out;
+    }
+
+    private static int chunks( long len ) {
+        return (int) ( ( len * Integer.BYTES + CHUNK_SIZE - 1 ) / CHUNK_SIZE );
+    }
+
+    private static long dataStart( int maxDoc ) {
+        return HEADER_SIZE + (long) Long.BYTES * ( maxDoc + 1 );
+    }
+
+    private static long total( long[] offsets ) {
+        return offsets[ offsets.length - 1 ];
+    }
+
+    @FunctionalInterface
+    private interface LeafTask {
+        void run( LeafReaderContext ctx ) throws IOException;
+    }
+}
@@ -16,24 +16,34 @@
  */
 package edu.columbia.incite.corpus;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
-import com.google.common.collect.ImmutableBiMap;
-
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.SortedMap;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 import java.util.SortedSet;
-import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.function.Function;
+import java.util.stream.Collectors;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
-import com.google.common.collect.ImmutableSortedMap;
-import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
@@ -78,6 +88,10 @@ public class Lexicon implements Iterable<Word> {
     /** Default field name for term id in all datasets **/
     public static final String TERM_ID = "_term_";
     
+    /** Binary snapshot format version **/
+    public static final int SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_MAGIC = 0x4c58434e; // "LXCN"
+    
     /** Index field over which this lexicon is constructed **/
     public final String field;    
     /** Minimum term frequency **/
@@ -92,69 +106,70 @@ public class Lexicon implements Iterable<Word> {
     /** Lexicon cardinality **/
     public final int    size;
 
-    private final LeafReader ir;
+    private final IndexReader ir;
     
-    private final BiMap<Integer,BytesRef>  ind2trms;
-    private final SortedMap<Integer,Word>  ind2wrds;
-    private final SortedMap<BytesRef,Word> trm2wrds;
+    // Lexicographically sorted term block: term at rank r is bytes[ starts[r], starts[r+1] ).
+    private final byte[] bytes;
+    private final int[]  starts;
+    // Canonical index for each lexicographic rank.
+    private final int[]  rank2id;
+    // Words, in canonical order.
+    private final Word[] words;
     
     private final CompiledAutomaton cau;
+    // Lazily computed content hash.
+    private long fprint;
+    private volatile boolean hashed;
 
     /**
      * Construct a new lexicon over the given field in the given index with the given frequency 
      * threshold.
      * 
-     * @param ir An atomic {@link LeafReader}.
+     * Term statistics are collected from each of the reader's segments in parallel and merged.
+     * 
+     * @param ir An {@link IndexReader}.
      * @param field Index field name.
      * @param minFreq Minimum term frequency
      * @throws IOException 
      */
-    public Lexicon( LeafReader ir, String field, int minFreq ) throws IOException {
+    public Lexicon( IndexReader ir, String field, int minFreq ) throws IOException {
+        this( ir, field, minFreq, TermBlock.collect( ir, field, minFreq ) );
+    }
+    
+    private Lexicon( IndexReader ir, String field, int minFreq, TermBlock blk ) {
         this.ir      = ir;
         this.field   = field;
         this.minFreq = minFreq;
+        this.uFreq   = blk.uFreq;
+        this.size    = blk.size;
+        this.bytes   = blk.bytes;
+        this.starts  = blk.starts;
         
-        Terms terms = ir.terms( field );
-        this.uFreq = terms.getSumTotalTermFreq();
+        // Canonical order: descending term frequency, then lexicographic.
+        Integer[] ord = new Integer[size];
+        for( int r = 0; r < size; r++ ) ord[r] = r;
+        Arrays.sort( ord, ( r1, r2 ) -> {
+            int c = Long.compare( blk.tf[r2], blk.tf[r1] );
+            return c != 0 ? c : Integer.compare( r1, r2 );
+        } );
         
-        // Collect terms with frequency above threshold.
-        TermsEnum tEnum = terms.iterator();
-        SortedSet<Word> tmp = new TreeSet<>();
+        this.rank2id = new int[size];
+        this.words   = new Word[size];
         long ttf = 0;
-        while( tEnum.next() != null ) {
-            long tf = tEnum.totalTermFreq();
-            long df = tEnum.docFreq();
-            if( tf >= minFreq ) {
-                ttf += tf;
-                tmp.add( new Word( tEnum.term(), tf, df ) );
-            } else {
-                // TODO: do something with OOL terms?
-            }
+        for( int id = 0; id < size; id++ ) {
+            int r = ord[id];
+            rank2id[r] = id;
+            words[id]  = new Word( termAt( r ), blk.tf[r], blk.df[r] );
+            ttf += blk.tf[r];
         }
         // Save coverage statistics
         this.nFreq = ttf;
         this.cover = (double) nFreq / (double) uFreq;
         
-        // Build internal maps
-        BiMap<Integer,BytesRef>  ind_tmp = HashBiMap.create();
-        SortedMap<Integer,Word>  iwd_tmp = new TreeMap<>();
-        SortedMap<BytesRef,Word> kwd_tmp = new TreeMap<>();
-        
-        int key = 0;
-        for( Word w : tmp ) {
-            ind_tmp.put( key, w.term );
-            iwd_tmp.put( key, w );
-            kwd_tmp.put( w.term, w );
-            key++;
-        }
-        this.size = key;
-        
-        this.ind2trms = ImmutableBiMap.copyOf( ind_tmp );
-        this.ind2wrds = ImmutableSortedMap.copyOf( iwd_tmp );
-        this.trm2wrds = ImmutableSortedMap.copyOf( kwd_tmp );
-        
         // Compile membership lexicon
-        Automaton au = Automata.makeStringUnion( this.trm2wrds.keySet() );
+        List<BytesRef> sorted = new ArrayList<>( size );
+        for( int r = 0; r < size; r++ ) sorted.add( termAt( r ) );
+        Automaton au = Automata.makeStringUnion( sorted );
         this.cau = new CompiledAutomaton( au );
     }
     
@@ -198,8 +213,8 @@ public class Lexicon implements Iterable<Word> {
      */
     public String[] terms() {
         String[] out = new String[ this.size ];
-        for( Integer i : this.ind2trms.keySet() ) {
-            out[i] = this.ind2trms.get( i ).utf8ToString();
+        for( int i = 0; i < size; i++ ) {
+            out[i] = words[i].toString();
         }
         return out;
     }
@@ -216,10 +231,66 @@ public class Lexicon implements Iterable<Word> {
     /**
      * Term index.
      * @param term A term's {@link BytesRef} representation.
-     * @return The index of the given term in this lexicon.
+     * @return The index of the given term in this lexicon, or -1 if the term is not in this 
+     *         lexicon.
      */
     public int getIndex( BytesRef term ) {
-        return ind2trms.inverse().get( term );
+        int r = search( term, 0, size - 1 );
+        return r < 0 ? -1 : rank2id[r];
+    }
+    
+    /**
+     * Term index by lexicographic rank.
+     * 
+     * Terms enumerations produced by {@link #filter(org.apache.lucene.index.Terms)} over the 
+     * field this lexicon was built from yield terms in lexicographic order, so their k-th term 
+     * has rank k.
+     * 
+     * @param rank A term's position in the lexicographic order of all terms in this lexicon.
+     * @return The index of the term at the given rank in this lexicon.
+     */
+    public int byRank( int rank ) {
+        return rank2id[rank];
+    }
+    
+    /**
+     * Term by lexicographic rank.
+     * 
+     * The returned {@link BytesRef} shares this lexicon's internal term block and must not be 
+     * modified.
+     * 
+     * @param rank A term's position in the lexicographic order of all terms in this lexicon.
+     * @return The term at the given rank.
+     */
+    public BytesRef termAt( int rank ) {
+        return new BytesRef( bytes, starts[rank], starts[rank + 1] - starts[rank] );
+    }
+    
+    /**
+     * Term rank, searching forward from the given rank.
+     * 
+     * Finds the lexicographic rank of the given term, looking only at ranks equal to or larger 
+     * than from. When looking up the terms of a sorted enumeration in sequence, passing the 
+     * previous result plus one as from makes each lookup take amortized constant time.
+     * 
+     * @param term A term's {@link BytesRef} representation.
+     * @param from The smallest rank to consider.
+     * @return The rank of the given term, or -1 if the term is not in this lexicon at a rank 
+     *         larger than or equal to from.
+     */
+    public int rank( BytesRef term, int from ) {
+        if( from < 0 ) from = 0;
+        if( from >= size ) return -1;
+        // Gallop forward until the term is bracketed, then binary search.
+        int lo = from;
+        int step = 1;
+        int hi = from;
+        while( hi < size && compare( hi, term ) < 0 ) {
+            lo = hi + 1;
+            hi += step;
+            step <<= 1;
+        }
+        return search( term, lo, hi < size ? hi : size - 1 );
     }
     
     /**
@@ -228,7 +299,7 @@ public class Lexicon implements Iterable<Word> {
      * @return The term at the position of the given index in this lexicon.
      */
     public String getTerm( int idx ) {
-        return ind2wrds.get( idx ).toString();
+        return words[idx].toString();
     }
     
     /**
@@ -237,7 +308,7 @@ public class Lexicon implements Iterable<Word> {
      * @return The {@link Word} for the term at the position of the given index in this lexicon.
      */
     public Word getWord( int idx ) {
-        return ind2wrds.get( idx );
+        return words[idx];
     }
     
     /**
@@ -252,14 +323,38 @@ public class Lexicon implements Iterable<Word> {
         return src.intersect( cau, null );
     }
 
+    /**
+     * Content fingerprint.
+     * 
+     * Hash of this lexicon's parameters, term block and canonical index assignment. Two lexicons 
+     * with equal fingerprints map the same terms to the same indices, so artefacts that store 
+     * lexicon indices can use it to detect that they are stale.
+     * 
+     * @return A 64-bit hash of this lexicon's contents.
+     */
+    public long fingerprint() {
+        if( hashed ) return fprint;
+        Hasher h = Hashing.murmur3_128().newHasher()
+            .putString( field, StandardCharsets.UTF_8 )
+            .putInt( minFreq )
+            .putLong( uFreq )
+            .putInt( size )
+            .putBytes( bytes, 0, starts[size] );
+        for( int r = 0; r < size; r++ ) h.putInt( rank2id[r] );
+        this.fprint = h.hash().asLong();
+        this.hashed = true;
+        return fprint;
+    }
+
     /**
      * Generalized positional weights
      * This function produces a suitable weighting factor between two token positions taking into 
      * account both the distance between the tokens and the weights associated to the term's 
      * at both positions.
      * 
-     * TODO: implement. The idea is to remove positional weighting from the cooccurrence worker to 
-     * further encapsulate parameters.
+     * TODO: implement. Purely positional weights are provided by 
+     * {@link edu.columbia.incite.corpus.work.CoocWeighting}; this is meant for weights that also 
+     * depend on the terms involved.
      * 
      * NB: NOT IMPLEMENTED YET.
      * 
@@ -302,16 +397,17 @@ public class Lexicon implements Iterable<Word> {
     @Override
     public Iterator<Word> iterator() {
         return new Iterator<Word>() {
-            private Iterator<Map.Entry<Integer,Word>> it = ind2wrds.entrySet().iterator();
+            private int i = 0;
             
             @Override
             public boolean hasNext() {
-                return it.hasNext();
+                return i < size;
             }
 
             @Override
             public Word next() {
-                return it.next().getValue();
+                if( i >= size ) throw new NoSuchElementException();
+                return words[i++];
             }
         };
     }
@@ -332,7 +428,80 @@ public class Lexicon implements Iterable<Word> {
     public static void write( Lexicon lxcn, Path file ) throws IOException {        
         DSVWriter csv = new DSVWriter( new LxcnAccesor() ).rowIdHead( Lexicon.TERM_ID );
         try ( Writer w = FileUtils.getWriter( file ) ) {
-            csv.write( lxcn.ind2wrds, w );
+            csv.write( lxcn.words, w );
+        }
+    }
+    
+    /**
+     * Write a binary snapshot of the given lexicon to disk.
+     * 
+     * Snapshots contain this lexicon's parameters, its sorted term block and term statistics, 
+     * tagged with the given index commit generation, so that they can be reloaded without walking 
+     * the field's terms enumeration. See 
+     * {@link #readSnapshot(org.apache.lucene.index.IndexReader, java.nio.file.Path, java.lang.String, int, long)}.
+     * 
+     * @param lxcn A lexicon.
+     * @param gen  The commit generation of the index the lexicon was built from.
+     * @param file A file path.
+     * @throws IOException 
+     */
+    public static void writeSnapshot( Lexicon lxcn, long gen, Path file ) throws IOException {
+        Files.createDirectories( file.toAbsolutePath().getParent() );
+        try( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( 
+            Files.newOutputStream( file ) 
+        ) ) ) {
+            out.writeInt( SNAPSHOT_MAGIC );
+            out.writeInt( SNAPSHOT_VERSION );
+            out.writeUTF( lxcn.field );
+            out.writeInt( lxcn.minFreq );
+            out.writeLong( gen );
+            out.writeLong( lxcn.uFreq );
+            out.writeInt( lxcn.size );
+            out.writeInt( lxcn.bytes.length );
+            out.write( lxcn.bytes );
+            for( int r = 0; r <= lxcn.size; r++ ) out.writeInt( lxcn.starts[r] );
+            for( int r = 0; r < lxcn.size; r++ ) out.writeLong( lxcn.words[ lxcn.rank2id[r] ].tf );
+            for( int r = 0; r < lxcn.size; r++ ) out.writeLong( lxcn.words[ lxcn.rank2id[r] ].df );
+        }
+    }
+    
+    /**
+     * Read a lexicon from a binary snapshot, if the snapshot matches the given parameters.
+     * 
+     * A snapshot is only valid if it was written by the current snapshot version for the same 
+     * field, minimum frequency and index commit generation.
+     * 
+     * @param ir      An {@link IndexReader} over the index the snapshot was built from.
+     * @param file    A snapshot file path.
+     * @param field   Index field name.
+     * @param minFreq Minimum term frequency.
+     * @param gen     The commit generation of the index opened by ir.
+     * @return A Lexicon, or {@code null} if no valid snapshot exists at the given location.
+     * @throws IOException 
+     */
+    public static Lexicon readSnapshot( IndexReader ir, Path file, String field, int minFreq, long gen ) 
+    throws IOException {
+        if( !Files.exists( file ) ) return null;
+        try( DataInputStream in = new DataInputStream( new BufferedInputStream( 
+            Files.newInputStream( file )
+        ) ) ) {
+            if( in.readInt() != SNAPSHOT_MAGIC ) return null;
+            if( in.readInt() != SNAPSHOT_VERSION ) return null;
+            if( !field.equals( in.readUTF() ) ) return null;
+            if( in.readInt() != minFreq ) return null;
+            if( in.readLong() != gen ) return null;
+            TermBlock blk = new TermBlock();
+            blk.uFreq  = in.readLong();
+            blk.size   = in.readInt();
+            blk.bytes  = new byte[ in.readInt() ];
+            in.readFully( blk.bytes );
+            blk.starts = new int[ blk.size + 1 ];
+            blk.tf     = new long[ blk.size ];
+            blk.df     = new long[ blk.size ];
+            for( int r = 0; r <= blk.size; r++ ) blk.starts[r] = in.readInt();
+            for( int r = 0; r < blk.size; r++ ) blk.tf[r] = in.readLong();
+            for( int r = 0; r < blk.size; r++ ) blk.df[r] = in.readLong();
+            return new Lexicon( ir, field, minFreq, blk );
         }
     }
     
@@ -378,7 +547,8 @@ public class Lexicon implements Iterable<Word> {
          * @throws IOException 
          */
         public PostingsEnum postings( DocSet ds ) throws IOException {
-            return ds != null ? ds.filter( ir.postings( term() ) ) : ir.postings( term() );
+            PostingsEnum pEnum = MultiFields.getTermDocsEnum( ir, field, term );
+            return ds != null && pEnum != null ? ds.filter( pEnum ) : pEnum;
         }
         
         @Override
@@ -393,6 +563,153 @@ public class Lexicon implements Iterable<Word> {
         }
     }
     
+    private int search( BytesRef term, int lo, int hi ) {
+        while( lo <= hi ) {
+            int m = ( lo + hi ) >>> 1;
+            int c = compare( m, term );
+            if( c < 0 ) lo = m + 1;
+            else if( c > 0 ) hi = m - 1;
+            else return m;
+        }
+        return -1;
+    }
+    
+    // Unsigned byte order, same as BytesRef.compareTo and Lucene's term order.
+    private int compare( int rank, BytesRef term ) {
+        int p = starts[rank];
+        int pEnd = starts[rank + 1];
+        int q = term.offset;
+        int qEnd = term.offset + term.length;
+        while( p < pEnd && q < qEnd ) {
+            int c = ( bytes[p++] & 0xff ) - ( term.bytes[q++] & 0xff );
+            if( c != 0 ) return c;
+        }
+        return ( pEnd - starts[rank] ) - term.length;
+    }
+    
+    /**
+     * Flat, lexicographically sorted block of terms and their statistics, as read from a field's 
+     * terms enumeration.
+     */
+    private static class TermBlock {
+        private long   uFreq;
+        private int    size;
+        private byte[] bytes  = new byte[1 << 16];
+        private int[]  starts = new int[1 << 10];
+        private long[] tf     = new long[1 << 10];
+        private long[] df     = new long[1 << 10];
+        
+        static TermBlock collect( IndexReader ir, String field, int minFreq ) throws IOException {
+            List<LeafReaderContext> leaves = ir.leaves();
+            if( leaves.size() == 1 ) return collect( leaves.get( 0 ).reader().terms( field ), minFreq );
+            // Per-segment frequencies must be kept in full until merged.
+            List<TermBlock> blks;
+            try {
+                blks = leaves.parallelStream().map( ( ctx ) -> {
+                    try {
+                        return collect( ctx.reader().terms( field ), 0 );
+                    } catch( IOException ex ) {
+                        throw new UncheckedIOException( ex );
+                    }
+                } ).collect( Collectors.toList() );
+            } catch( UncheckedIOException ex ) {
+                throw ex.getCause();
+            }
+            return merge( blks, minFreq );
+        }
+        
+        static TermBlock collect( Terms terms, int minFreq ) throws IOException {
+            TermBlock blk = new TermBlock();
+            if( terms == null ) {
+                blk.finish();
+                return blk;
+            }
+            blk.uFreq = terms.getSumTotalTermFreq();
+            // Collect terms with frequency above threshold.
+            TermsEnum tEnum = terms.iterator();
+            BytesRef term;
+            while( ( term = tEnum.next() ) != null ) {
+                long tf = tEnum.totalTermFreq();
+                if( tf >= minFreq ) {
+                    blk.add( term, tf, tEnum.docFreq() );
+                } else {
+                    // TODO: do something with OOL terms?
+                }
+            }
+            blk.finish();
+            return blk;
+        }
+        
+        /**
+         * K-way merge of per-segment term blocks, adding up frequencies for equal terms and 
+         * keeping only terms with a total frequency above the given threshold.
+         */
+        static TermBlock merge( List<TermBlock> blks, int minFreq ) {
+            TermBlock out = new TermBlock();
+            int[] pos = new int[ blks.size() ];
+            PriorityQueue<Integer> pq = new PriorityQueue<>( Math.max( 1, blks.size() ),
+                ( a, b ) -> compare( blks.get( a ), pos[a], blks.get( b ), pos[b] )
+            );
+            for( int b = 0; b < blks.size(); b++ ) {
+                out.uFreq += blks.get( b ).uFreq;
+                if( blks.get( b ).size > 0 ) pq.add( b );
+            }
+            while( !pq.isEmpty() ) {
+                int b = pq.poll();
+                TermBlock blk = blks.get( b );
+                int r = pos[b];
+                long tf = blk.tf[r];
+                long df = blk.df[r];
+                while( !pq.isEmpty() && compare( blks.get( pq.peek() ), pos[pq.peek()], blk, r ) == 0 ) {
+                    int o = pq.poll();
+                    tf += blks.get( o ).tf[ pos[o] ];
+                    df += blks.get( o ).df[ pos[o] ];
+                    if( ++pos[o] < blks.get( o ).size ) pq.add( o );
+                }
+                if( tf >= minFreq ) out.add( blk.term( r ), tf, df );
+                if( ++pos[b] < blk.size ) pq.add( b );
+            }
+            out.finish();
+            return out;
+        }
+        
+        private BytesRef term( int r ) {
+            return new BytesRef( bytes, starts[r], starts[r + 1] - starts[r] );
+        }
+        
+        private static int compare( TermBlock b1, int r1, TermBlock b2, int r2 ) {
+            int p = b1.starts[r1], pEnd = b1.starts[r1 + 1];
+            int q = b2.starts[r2], qEnd = b2.starts[r2 + 1];
+            while( p < pEnd && q < qEnd ) {
+                int c = ( b1.bytes[p++] & 0xff ) - ( b2.bytes[q++] & 0xff );
+                if( c != 0 ) return c;
+            }
+            return ( pEnd - b1.starts[r1] ) - ( qEnd - b2.starts[r2] );
+        }
+        
+        private void add( BytesRef term, long tf, long df ) {
+            if( size + 1 >= starts.length ) {
+                int len = starts.length << 1;
+                starts = Arrays.copyOf( starts, len );
+                this.tf = Arrays.copyOf( this.tf, len );
+                this.df = Arrays.copyOf( this.df, len );
+            }
+            int p = starts[size];
+            if( p + term.length > bytes.length ) {
+                bytes = Arrays.copyOf( bytes, Math.max( bytes.length << 1, p + term.length ) );
+            }
+            System.arraycopy( term.bytes, term.offset, bytes, p, term.length );
+            this.tf[size] = tf;
+            this.df[size] = df;
+            starts[++size] = p + term.length;
+        }
+        
+        private void finish() {
+            bytes  = Arrays.copyOf( bytes, starts[size] );
+            starts = Arrays.copyOf( starts, size + 1 );
+        }
+    }
+    
     /**
      * Simple struct to hold the representation of a lexicon as a set of three same-length arrays.
      * 
@@ -422,7 +739,7 @@ public class Lexicon implements Iterable<Word> {
         }
     }
     
-    private static class LxcnAccesor implements Accesor<SortedMap<Integer,Word>,Word,String,Long> {
+    private static class LxcnAccesor implements Accesor<Word[],Word,String,Long> {
 
         public static final String TF_KEY = "tf";
         public static final String DF_KEY = "df";
@@ -431,12 +748,12 @@ public class Lexicon implements Iterable<Word> {
         private final Map<String,Long> vals = new HashMap<>();
         
         @Override
-        public SortedSet<Word> rows( SortedMap<Integer,Word> data ) {
-            return new TreeSet<>( data.values() );
+        public SortedSet<Word> rows( Word[] data ) {
+            return new TreeSet<>( Arrays.asList( data ) );
         }
 
         @Override
-        public SortedSet<String> cols( SortedMap<Integer,Word> data ) {
+        public SortedSet<String> cols( Word[] data ) {
             cols.clear();
             cols.add( "tf" );
             cols.add( "df" );
@@ -444,7 +761,7 @@ public class Lexicon implements Iterable<Word> {
         }
 
         @Override
-        public Map<String,Long> values( SortedMap<Integer,Word> data, Word r ) {
+        public Map<String,Long> values( Word[] data, Word r ) {
             vals.clear();
             vals.put( "tf", r.tf );
             vals.put( "df", r.df );
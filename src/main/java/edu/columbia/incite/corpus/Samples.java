@@ -6,16 +6,43 @@
 package edu.columbia.incite.corpus;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SplittableRandom;
 
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.search.BooleanClause;
-import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.BulkScorer;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.BitSetIterator;
+import org.apache.lucene.util.FixedBitSet;
 
 /**
+ * Query-based document samples.
+ * 
+ * Samples are collected without scoring: each segment is collected in parallel into its own 
+ * bitset, which is then added to the sample's {@link DocSet}. Deleted documents are never 
+ * included.
+ * 
+ * Collected samples are kept in a least-recently-used cache, keyed by query and by the reader's 
+ * {@link IndexReader#getCombinedCoreAndDeletesKey() core and deletes key}, which changes whenever 
+ * the index is reopened after documents are added or deleted. Entries for a reader are dropped 
+ * when the reader is closed. Callers get copies of cached sets, and may modify them freely.
+ * 
+ * Random samples can be drawn from any DocSet, uniformly by {@link #reservoir(DocSet, int, long) 
+ * reservoir} or {@link #bernoulli(DocSet, double, long) Bernoulli} sampling, or 
+ * {@link #stratified(DocSet, DocMap, int[], long) stratified} by a DocMap's output values. All 
+ * random samples are determined by their seed: the same source set and seed always produce the 
+ * same sample.
  *
  * @author José Tomás Atria <jtatria at gmail.com>
  */
@@ -24,19 +51,290 @@ public class Samples {
     public static final String UNIVERSE_KEY = "UNIVERSE";
     public static final Query UNIVERSE = new MatchAllDocsQuery();
     
+    /** Default maximum number of cached samples **/
+    public static final int DFLT_CACHE_SIZE = 32;
+    
+    private static final Map<Key,DocSet> CACHE = new LinkedHashMap<>( 16, .75f, true );
+    private static int cacheSize = DFLT_CACHE_SIZE;
+    
+    /**
+     * Get the set of documents matching the given query.
+     * 
+     * @param ir An index reader.
+     * @param q  A query.
+     * @return A new DocSet with all live documents in ir that match q.
+     * @throws IOException 
+     */
     public static DocSet getSample( IndexReader ir, Query q ) throws IOException {
-        IndexSearcher is = new IndexSearcher( ir );
-        TopDocs hits = is.search( q, ir.numDocs() );
-        return new DocSet( hits, ir.numDocs() );
+        Key key = new Key( ir, q );
+        DocSet ds;
+        synchronized( CACHE ) {
+            ds = CACHE.get( key );
+        }
+        if( ds == null ) {
+            ds = collect( ir, q );
+            cache( ir, key, ds );
+        }
+        return new DocSet( ds );
     }   
     
+    /**
+     * Get the set of documents not matching the given query.
+     * 
+     * @param ir An index reader.
+     * @param q  A query.
+     * @return A new DocSet with all live documents in ir that do not match q.
+     * @throws IOException 
+     */
     public static DocSet complement( IndexReader ir, Query q ) throws IOException {
-        BooleanQuery.Builder bldr = new BooleanQuery.Builder();
-        bldr.add( UNIVERSE, BooleanClause.Occur.FILTER );
-        bldr.add( q, BooleanClause.Occur.MUST_NOT );
-        Query notq = bldr.build();
+        DocSet ds = getSample( ir, q );
+        return ir.hasDeletions() ? getSample( ir, UNIVERSE ).andNot( ds ) : ds.complement();
+    }
+    
+    /**
+     * Draw a uniform random sample of the given size from the given DocSet, by reservoir sampling.
+     * 
+     * @param src  A DocSet.
+     * @param k    Sample size.
+     * @param seed Random seed.
+     * @return A new DocSet with {@code min( k, src.size() )} documents from src.
+     */
+    public static DocSet reservoir( DocSet src, int k, long seed ) {
+        SplittableRandom rnd = new SplittableRandom( seed );
+        int[] docs = src.vector();
+        int[] res = new int[ Math.max( 0, Math.min( k, docs.length ) ) ];
+        for( int i = 0; i < docs.length; i++ ) {
+            if( i < res.length ) {
+                res[i] = docs[i];
+            } else {
+                int j = rnd.nextInt( i + 1 );
+                if( j < res.length ) res[j] = docs[i];
+            }
+        }
+        return fill( src.maxDoc(), res, res.length );
+    }
+    
+    /**
+     * Draw a random sample from the given DocSet, including each document independently with the 
+     * given probability.
+     * 
+     * Gaps between included documents are drawn from a geometric distribution, so only one random 
+     * number is drawn per included document.
+     * 
+     * @param src  A DocSet.
+     * @param p    Inclusion probability, between 0 and 1.
+     * @param seed Random seed.
+     * @return A new DocSet with about {@code p * src.size()} documents from src.
+     */
+    public static DocSet bernoulli( DocSet src, double p, long seed ) {
+        if( p >= 1 ) return new DocSet( src );
+        int[] docs = src.vector();
+        int[] res = new int[ docs.length ];
+        int n = 0;
+        if( p > 0 ) {
+            SplittableRandom rnd = new SplittableRandom( seed );
+            double lq = Math.log1p( -p );
+            for( long i = skip( rnd, lq ); i < docs.length; i += 1 + skip( rnd, lq ) ) {
+                res[n++] = docs[ (int) i ];
+            }
+        }
+        return fill( src.maxDoc(), res, n );
+    }
+    
+    /**
+     * Draw a stratified random sample from the given DocSet, taking the same number of documents 
+     * from each stratum, by reservoir sampling within each stratum.
+     * 
+     * @param src    A DocSet.
+     * @param strata A DocMap assigning documents to strata. Unassigned documents are excluded.
+     * @param quota  Number of documents to take from each stratum.
+     * @param seed   Random seed.
+     * @return A new DocSet with at most quota documents from each stratum.
+     */
+    public static DocSet stratified( DocSet src, DocMap<?> strata, int quota, long seed ) {
+        int[] quotas = new int[ strata.numOutputs() ];
+        Arrays.fill( quotas, quota );
+        return stratified( src, strata, quotas, seed );
+    }
+    
+    /**
+     * Draw a stratified random sample from the given DocSet, taking the given fraction of each 
+     * stratum's documents, by reservoir sampling within each stratum. This preserves the relative 
+     * sizes of strata in the sample.
+     * 
+     * @param src    A DocSet.
+     * @param strata A DocMap assigning documents to strata. Unassigned documents are excluded.
+     * @param rate   Fraction of documents to take from each stratum, between 0 and 1.
+     * @param seed   Random seed.
+     * @return A new DocSet with about {@code rate} of the documents in each stratum.
+     */
+    public static DocSet stratified( DocSet src, DocMap<?> strata, double rate, long seed ) {
+        int[] quotas = new int[ strata.numOutputs() ];
+        for( int doc : src.vector() ) {
+            int s = strata.ordinal( doc );
+            if( s >= 0 && s < quotas.length ) quotas[s]++;
+        }
+        for( int s = 0; s < quotas.length; s++ ) quotas[s] = (int) Math.round( quotas[s] * rate );
+        return stratified( src, strata, quotas, seed );
+    }
+    
+    /**
+     * Draw a stratified random sample from the given DocSet, taking the given number of documents 
+     * from each stratum, by reservoir sampling within each stratum.
+     * 
+     * @param src    A DocSet.
+     * @param strata A DocMap assigning documents to strata. Unassigned documents are excluded.
+     * @param quotas Number of documents to take from each stratum, indexed by the strata's 
+     *               {@link DocMap#ordinal(int) ordinals}. Strata beyond the array's length are 
+     *               excluded.
+     * @param seed   Random seed.
+     * @return A new DocSet with at most {@code quotas[s]} documents from each stratum s.
+     */
+    public static DocSet stratified( DocSet src, DocMap<?> strata, int[] quotas, long seed ) {
+        SplittableRandom rnd = new SplittableRandom( seed );
+        int[][] res = new int[ quotas.length ][];
+        int[] seen = new int[ quotas.length ];
+        for( int s = 0; s < quotas.length; s++ ) res[s] = new int[ Math.max( 0, quotas[s] ) ];
+        for( int doc : src.vector() ) {
+            int s = strata.ordinal( doc );
+            if( s < 0 || s >= quotas.length ) continue;
+            int i = seen[s]++;
+            if( i < res[s].length ) {
+                res[s][i] = doc;
+            } else {
+                int j = rnd.nextInt( i + 1 );
+                if( j < res[s].length ) res[s][j] = doc;
+            }
+        }
+        int n = 0;
+        for( int s = 0; s < quotas.length; s++ ) n += Math.min( seen[s], res[s].length );
+        int[] out = new int[n];
+        n = 0;
+        for( int s = 0; s < quotas.length; s++ ) {
+            int len = Math.min( seen[s], res[s].length );
+            System.arraycopy( res[s], 0, out, n, len );
+            n += len;
+        }
+        return fill( src.maxDoc(), out, n );
+    }
+    
+    /**
+     * Set the maximum number of cached samples, evicting least recently used samples if the cache 
+     * is over the new size.
+     * 
+     * @param size Maximum number of cached samples. 0 disables caching.
+     */
+    public static void cacheSize( int size ) {
+        synchronized( CACHE ) {
+            cacheSize = size;
+            trim();
+        }
+    }
+    
+    /**
+     * Remove all cached samples.
+     */
+    public static void clearCache() {
+        synchronized( CACHE ) {
+            CACHE.clear();
+        }
+    }
+    
+    private static DocSet collect( IndexReader ir, Query q ) throws IOException {
         IndexSearcher is = new IndexSearcher( ir );
-        TopDocs hits = is.search( notq, ir.numDocs() );
-        return new DocSet( hits, ir.numDocs() );
+        Weight w = is.createNormalizedWeight( q, false );
+        DocSet ds = new DocSet( ir.maxDoc() );
+        try {
+            ir.leaves().parallelStream().forEach( ( ctx ) -> {
+                try {
+                    collect( w, ctx, ds );
+                } catch( IOException ex ) {
+                    throw new UncheckedIOException( ex );
+                }
+            } );
+        } catch( UncheckedIOException ex ) {
+            throw ex.getCause();
+        }
+        return ds;
+    }
+    
+    private static void collect( Weight w, LeafReaderContext ctx, DocSet ds ) throws IOException {
+        BulkScorer scorer = w.bulkScorer( ctx );
+        if( scorer == null ) return;
+        FixedBitSet bits = new FixedBitSet( ctx.reader().maxDoc() );
+        scorer.score( new LeafCollector() {
+            @Override
+            public void setScorer( Scorer scorer ) {
+            }
+
+            @Override
+            public void collect( int doc ) {
+                bits.set( doc );
+            }
+        }, ctx.reader().getLiveDocs() );
+        int card = bits.cardinality();
+        if( card == 0 ) return;
+        synchronized( ds ) {
+            ds.add( new BitSetIterator( bits, card ), ctx.docBase );
+        }
+    }
+
+    // Number of documents to skip before the next one included in a Bernoulli sample.
+    private static long skip( SplittableRandom rnd, double lq ) {
+        return (long) Math.min( Math.log( 1d - rnd.nextDouble() ) / lq, Integer.MAX_VALUE );
+    }
+    
+    private static DocSet fill( int maxDoc, int[] docs, int n ) {
+        DocSet out = new DocSet( maxDoc, n <= maxDoc * DocSet.DENSE_RATIO );
+        for( int i = 0; i < n; i++ ) out.add( docs[i] );
+        return out;
+    }
+
+    private static void cache( IndexReader ir, Key key, DocSet ds ) {
+        synchronized( CACHE ) {
+            if( cacheSize <= 0 ) return;
+            boolean known = CACHE.keySet().stream().anyMatch( ( k ) -> k.reader == key.reader );
+            CACHE.put( key, ds );
+            trim();
+            if( !known ) {
+                ir.addReaderClosedListener( ( closed ) -> evict( key.reader ) );
+            }
+        }
+    }
+    
+    private static void evict( Object reader ) {
+        synchronized( CACHE ) {
+            CACHE.keySet().removeIf( ( k ) -> k.reader == reader );
+        }
+    }
+    
+    private static void trim() {
+        Iterator<Key> it = CACHE.keySet().iterator();
+        while( CACHE.size() > Math.max( cacheSize, 0 ) && it.hasNext() ) {
+            it.next();
+            it.remove();
+        }
+    }
+    
+    private static class Key {
+        private final Object reader;
+        private final Query q;
+        
+        Key( IndexReader ir, Query q ) {
+            this.reader = ir.getCombinedCoreAndDeletesKey();
+            this.q = q;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode( reader ) + q.hashCode();
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            if( !( obj instanceof Key ) ) return false;
+            Key oth = (Key) obj;
+            return this.reader == oth.reader && Objects.equals( this.q, oth.q );
+        }
     }
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.corpus.work;
+
+/**
+ * Distance weighting schemes for co-occurrence counts.
+ *
+ * Each scheme assigns a weight to a pair of tokens as a function of their distance and the width
+ * of the window side they fall in. Weights are not computed per pair: workers precompute them
+ * into a table indexed by offset with {@link #table(int, int)}, or
+ * {@link #table(edu.columbia.incite.corpus.work.CoocWeighting, edu.columbia.incite.corpus.work.CoocWeighting, int, int)}
+ * for different schemes on each side of the window.
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public enum CoocWeighting {
+    /** Inverse distance: {@code 1 / d}. **/
+    HARMONIC {
+        @Override
+        public double weight( int d, int w ) {
+            return 1d / d;
+        }
+    },
+    /** Linear decay from 1 at distance 1 to {@code 1 / w} at the window's edge. **/
+    LINEAR {
+        @Override
+        public double weight( int d, int w ) {
+            return (double) ( w - d + 1 ) / w;
+        }
+    },
+    /** Raw counts: 1 for every pair in the window. **/
+    UNIFORM {
+        @Override
+        public double weight( int d, int w ) {
+            return 1d;
+        }
+    },
+    /** Gaussian kernel with a standard deviation of half the window's width. **/
+    GAUSSIAN {
+        @Override
+        public double weight( int d, int w ) {
+            double sd = w / 2d;
+            return Math.exp( -( d * d ) / ( 2 * sd * sd ) );
+        }
+    };
+
+    /**
+     * Weight for a pair of tokens at the given distance in a window side of the given width.
+     *
+     * @param d Distance between tokens, between 1 and w.
+     * @param w Width of the window side.
+     * @return A weighting factor.
+     */
+    public abstract double weight( int d, int w );
+
+    /**
+     * Weight table for a window with the given widths, using this scheme on both sides.
+     *
+     * @param wPre The size of the window before each context word.
+     * @param wPos The size of the window after each context word.
+     * @return A weight table, see
+     * {@link #table(edu.columbia.incite.corpus.work.CoocWeighting, edu.columbia.incite.corpus.work.CoocWeighting, int, int)}.
+     */
+    public double[] table( int wPre, int wPos ) {
+        return table( this, this, wPre, wPos );
+    }
+
+    /**
+     * Weight table for a window with the given widths and schemes on each side.
+     *
+     * The weight for a token at position {@code j} relative to a context word at position
+     * {@code i} is found at {@code table[ j - i + wPre ]}. The slot for the context word itself
+     * is 0.
+     *
+     * @param pre  Weighting scheme for tokens before each context word.
+     * @param pos  Weighting scheme for tokens after each context word.
+     * @param wPre The size of the window before each context word.
+     * @param wPos The size of the window after each context word.
+     * @return A {@code double[wPre + wPos + 1]} array of weights by offset.
+     */
+    public static double[] table( CoocWeighting pre, CoocWeighting pos, int wPre, int wPos ) {
+        double[] out = new double[ wPre + wPos + 1 ];
+        for( int d = 1; d <= wPre; d++ ) out[ wPre - d ] = pre.weight( d, wPre );
+        for( int d = 1; d <= wPos; d++ ) out[ wPre + d ] = pos.weight( d, wPos );
+        return out;
+    }
+}
@@ -16,27 +16,38 @@
  */
 package edu.columbia.incite.corpus.work;
 
+import edu.columbia.incite.util.ShardedSparseMatrix;
 import edu.columbia.incite.util.SparseMatrix;
+import edu.columbia.incite.corpus.DocMap;
+import edu.columbia.incite.corpus.DocSet;
+import edu.columbia.incite.corpus.ForwardIndex;
 import edu.columbia.incite.corpus.Lexicon;
 
 import com.google.common.base.Stopwatch;
 
-import gnu.trove.map.TIntIntMap;
-import gnu.trove.map.hash.TIntIntHashMap;
-
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BitSet;
 
 import edu.columbia.incite.run.Logs;
+import edu.columbia.incite.run.Memory;
 import edu.columbia.incite.run.Status;
 import edu.columbia.incite.run.Progress;
 
@@ -49,6 +60,10 @@ import edu.columbia.incite.run.Progress;
  * {@link SparseMatrix} with cooc values for the terms in the lexicon found in the sampled 
  * documents.
  * 
+ * If a {@link DocMap} is given, one matrix is accumulated for each of its outputs in the same 
+ * pass, with each document's counts routed to its split's matrix. Documents with no split value 
+ * are skipped.
+ * 
  * It is thread-safe, in that the {@link Runnable} tasks it produces can be executed in parallel.
  * 
  * @author José Tomás Atria <jtatria@gmail.com>
@@ -57,17 +72,44 @@ public class CoocWorker {
     
     /** String used in progress reports. **/
     public static final String NAME = "Counting co-occurrences";
+
+    /** Sentinel value for filtered positions in position buffers. **/
+    public static final int NO_TERM = -1;
+    /** Initial size for per-thread position buffers. **/
+    public static final int BUFFER_SIZE = 1 << 12;
+    /** File name format for spilled runs. **/
+    public static final String RUN_FILE = "cooc-run-%05d.bin";
+    /** Prefix for per-split run directories, created under the temporary directory. **/
+    public static final String RUN_DIR = "cooc-";
+    /** Maximum number of runs merged at once. **/
+    public static final int MAX_RUNS = 128;
+    /** Smallest document range split by fork/join tasks. **/
+    public static final int MIN_GRAIN = 64;
+    /** Target number of maximum grain ranges per thread. **/
+    public static final int TASKS_PER_THREAD = 16;
+    /** Queued tasks per thread above which ranges at or below the maximum grain stop splitting. **/
+    public static final int SURPLUS = 2;
     
     // data objects
-    private final ThreadLocal<SparseMatrix> tlMatrix = ThreadLocal.withInitial( () -> initData() );
-    private final List<SparseMatrix> matrices = new ArrayList<>();
+    private final Accumulator[] accs;
+    private final ThreadLocal<Positions> tlBuffer = ThreadLocal.withInitial( () -> new Positions() );
+    private final AtomicInteger runCt = new AtomicInteger();
+    private final AtomicInteger parts = new AtomicInteger();
+    private final AtomicLong failed = new AtomicLong();
     
     // parameters
     private final int wPre;
     private final int wPos;
+    private double[] weights;
+    private final SparseMatrix.Backend backend;
+    private int shards;
+    private long budget = 0;
+    private Path tmpDir;
+    private ForwardIndex fwd;
     
     // helper objects
-    private final LeafReader indx;
+    private final DocMap<String> splits;
+    private final IndexReader indx;
     private final Lexicon    lxcn;
     private final Status   prog;
     
@@ -76,11 +118,11 @@ public class CoocWorker {
      * co-occurrences in a window with the given pre and pos widths.
      * 
      * @param lxcn A corpus' {@link Lexicon}.
-     * @param ir    An (atomic) index reader.
+     * @param ir    An index reader.
      * @param pre   The size of the window before each context word.
      * @param pos   The size of the window after each context word.
      */
-    public CoocWorker( Lexicon lxcn, LeafReader ir, int pre, int pos ) {
+    public CoocWorker( Lexicon lxcn, IndexReader ir, int pre, int pos ) {
         this( lxcn, ir, pre, pos, null );
     }
     
@@ -90,19 +132,136 @@ public class CoocWorker {
      * in the given out.
      * 
      * @param lxcn A corpus' {@link Lexicon}.
-     * @param ir    An (atomic) index reader.
+     * @param ir    An index reader.
      * @param pre   The size of the window before each context word.
      * @param pos   The size of the window after each context word.
      * @param out   A {@link Progress} object to report work.
      */
-    public CoocWorker( Lexicon lxcn, LeafReader ir, int pre, int pos, Progress out ) {
+    public CoocWorker( Lexicon lxcn, IndexReader ir, int pre, int pos, Progress out ) {
+        this( lxcn, ir, pre, pos, SparseMatrix.Backend.HASH, 0, out );
+    }
+    
+    /**
+     * Create a new worker for the given lexicon using data from the given index to count 
+     * co-occurrences in a window with the given pre and pos widths, accumulating counts in 
+     * matrices of the given backend, and report progress status in the given out.
+     * 
+     * If shards is larger than zero, all tasks will write to a single shared 
+     * {@link ShardedSparseMatrix} with the given number of shards, and no merge will be needed 
+     * when collecting results. Otherwise, each thread will accumulate counts in its own partial 
+     * matrix, and partial matrices will be merged in parallel when collecting results.
+     * 
+     * @param lxcn    A corpus' {@link Lexicon}.
+     * @param ir      An index reader.
+     * @param pre     The size of the window before each context word.
+     * @param pos     The size of the window after each context word.
+     * @param backend A {@link SparseMatrix.Backend} for partial results.
+     * @param shards  Number of row shards for a shared matrix, or 0 for per-thread matrices.
+     * @param out     A {@link Progress} object to report work.
+     */
+    public CoocWorker( 
+        Lexicon lxcn, IndexReader ir, int pre, int pos, 
+        SparseMatrix.Backend backend, int shards, Progress out
+    ) {
+        this( lxcn, ir, null, pre, pos, backend, shards, out );
+    }
+    
+    /**
+     * Create a new worker for the given lexicon using data from the given index to count 
+     * co-occurrences in a window with the given pre and pos widths, accumulating one set of 
+     * counts for each output in the given splits, in matrices of the given backend, and report 
+     * progress status in the given out.
+     * 
+     * Sharding works as in 
+     * {@link #CoocWorker(edu.columbia.incite.corpus.Lexicon, org.apache.lucene.index.IndexReader, int, int, edu.columbia.incite.util.SparseMatrix.Backend, int, edu.columbia.incite.run.Progress)}, 
+     * with one shared matrix per split.
+     * 
+     * @param lxcn    A corpus' {@link Lexicon}.
+     * @param ir      An index reader.
+     * @param splits  A {@link DocMap} with split values for each document, or {@code null}.
+     * @param pre     The size of the window before each context word.
+     * @param pos     The size of the window after each context word.
+     * @param backend A {@link SparseMatrix.Backend} for partial results.
+     * @param shards  Number of row shards for shared matrices, or 0 for per-thread matrices.
+     * @param out     A {@link Progress} object to report work.
+     */
+    public CoocWorker( 
+        Lexicon lxcn, IndexReader ir, DocMap<String> splits, int pre, int pos, 
+        SparseMatrix.Backend backend, int shards, Progress out
+    ) {
+        this.backend = backend;
+        this.shards = shards;
+        this.splits = splits;
+        this.accs = new Accumulator[ splits == null ? 1 : splits.numOutputs() ];
+        for( int k = 0; k < accs.length; k++ ) accs[k] = new Accumulator();
         this.wPre = pre;
         this.wPos = pos;
+        this.weights = CoocWeighting.HARMONIC.table( pre, pos );
         this.indx = ir;
         this.lxcn = lxcn;
         this.prog = out == null ? Status.make( NAME ) : new Status( NAME, out );
     }
 
+    /**
+     * Bound the heap used by this worker's partial results.
+     * 
+     * When a budget is set, each thread's partial matrix is flushed to disk as a sorted run in 
+     * the given directory whenever the estimated size of all partial matrices would exceed the 
+     * budget. Runs are combined with a k-way merge when results are collected, which should be 
+     * done with {@link #write(java.nio.file.Path)} to avoid loading the full matrix in memory.
+     * 
+     * Bounded mode requires per-thread partials, so any shared sharded matrix is disabled.
+     * 
+     * Runs for each split are written to a new uniquely named directory under the given one, 
+     * which is deleted once they have been merged, so concurrent workers or processes can share 
+     * the same temporary directory.
+     * 
+     * @param budget Heap budget in bytes, or 0 for unbounded accumulation.
+     * @param dir    Directory for temporary run files.
+     * @return This worker.
+     */
+    public CoocWorker spill( long budget, Path dir ) {
+        if( budget > 0 && shards > 0 ) {
+            Logs.warnf( "%s: heap budget requires per-thread partials, ignoring %d shards", 
+                NAME, shards
+            );
+            shards = 0;
+            for( Accumulator acc : accs ) acc.shared = null;
+        }
+        this.budget = budget;
+        this.tmpDir = dir;
+        return this;
+    }
+
+    /**
+     * Weight co-occurrences with the given schemes for each side of the window.
+     * 
+     * Defaults to {@link CoocWeighting#HARMONIC} on both sides.
+     * 
+     * @param pre Weighting scheme for tokens before each context word.
+     * @param pos Weighting scheme for tokens after each context word.
+     * @return This worker.
+     */
+    public CoocWorker weighting( CoocWeighting pre, CoocWeighting pos ) {
+        this.weights = CoocWeighting.table( pre, pos, wPre, wPos );
+        return this;
+    }
+
+    /**
+     * Read document sequences from the given forward index instead of decoding term vectors.
+     * 
+     * The forward index must have been built for this worker's lexicon over the same index, see 
+     * {@link ForwardIndex#matches(edu.columbia.incite.corpus.Lexicon, long)}. Counts are 
+     * identical in both modes.
+     * 
+     * @param fwd A {@link ForwardIndex}, or {@code null} to use term vectors.
+     * @return This worker.
+     */
+    public CoocWorker forward( ForwardIndex fwd ) {
+        this.fwd = fwd;
+        return this;
+    }
+
     /**
      * Produce a runnable task for this worker.
      * 
@@ -116,93 +275,235 @@ public class CoocWorker {
         prog.add();
         return () -> {
             try {
-                Terms tv = indx.getTermVector( doc, lxcn.field() );
-                if( tv != null ) {
-                    TIntIntMap wrk = new TIntIntHashMap();
-                    PostingsEnum p = null;
-                    int max = 0;
-                    TermsEnum tEnum = lxcn.filter( tv );
-                    // Collect position info for each term
-                    while( tEnum.next() != null ) {
-                        p = tEnum.postings( p, PostingsEnum.POSITIONS );
-                        while( p.nextDoc() != PostingsEnum.NO_MORE_DOCS ) {
-                            int f = p.freq();
-                            for( int i = 0; i < f; i++ ) {
-                                int pos = p.nextPosition();
-                                max = pos > max ? pos : max; // record max position
-                                wrk.put( pos, lxcn.getIndex( tEnum.term() ) );
-                            }
-                        }
-                    }
-                    
-                    // Naive implementation.
-                    for( int i = 0; i <= max; i++ ) {
-                        if( !wrk.containsKey( i ) ) continue;
-                        int lo = ( i - wPre < 0 ) ? 0 : i - wPre;
-                        int hi = ( i + wPos > max ) ? max : i + wPos;
-                        for( int j = lo; j <= hi; j++ ) {
-                            if( i == j ) continue;
-                            if( !wrk.containsKey( j ) ) continue; // j was a filtered term.
-                            addDelta( wrk.get( i ), i, wrk.get( j ), j );
-                        }
-                    }
-                    
-                }
+                count( doc );
             } catch( IOException ex ) {
-                Logger.getLogger( "" ).log( Level.SEVERE, null, ex );
+                failed.incrementAndGet();
+                Logger.getLogger( CoocWorker.class.getName() ).log( Level.SEVERE, null, ex );
             }
             prog.update();
         };
     }
 
-    private void addDelta( int pre_i, int pre_p, int pos_i, int pos_p ) {
-        // double delta = lxcn.weight( pre_i, pre_p, pos_i, pos_p ); // TODO
-        double delta = 1d / Math.abs( pre_p - pos_p );
-        update( pre_i, pos_i, delta );
+    /**
+     * Produce a fork/join task for all documents in the given set.
+     * 
+     * The returned task covers the full range of document numbers, and splits it in halves 
+     * while ranges are larger than a maximum grain, or while they are larger than 
+     * {@link #MIN_GRAIN} and there are not enough queued tasks for idle threads to steal. Leaf 
+     * ranges are scanned with {@link BitSet#nextSetBit(int)}, without allocating per document.
+     * 
+     * @param ds      A document set.
+     * @param threads Number of threads the task will run on, used to pick the maximum grain.
+     * @return A {@link RecursiveAction} with the work corresponding to the given documents.
+     */
+    public RecursiveAction work( DocSet ds, int threads ) {
+        BitSet bits = ds.bits();
+        prog.add( ds.size() );
+        int grain = Math.max( MIN_GRAIN, bits.length() / ( threads * TASKS_PER_THREAD ) );
+        return new DocRange( bits, 0, bits.length(), grain );
     }
 
-    private void update( int i, int j, double d ) {
-        tlMatrix.get().update( i, j, d );
+    private void count( int doc ) throws IOException {
+        int col = splits != null ? splits.ordinal( doc ) : 0;
+        if( col < 0 ) return;
+        Positions ps = tlBuffer.get();
+        try {
+            int max = fwd != null ? read( doc, ps ) : collect( doc, ps );
+            if( max < 0 ) return;
+            count( ps.buf, max, accs[col].target() );
+        } finally {
+            // Reset used slots for the next document in this thread, also after failed reads.
+            ps.reset();
+        }
+        if( budget > 0 ) accs[col].checkBudget();
     }
 
-    private SparseMatrix initData() {
-        SparseMatrix m = new SparseMatrix();
-        synchronized( matrices ) {
-            matrices.add( m );
+    /**
+     * Copy the given document's sequence from the forward index into this thread's buffer.
+     * @return The last populated position.
+     */
+    private int read( int doc, Positions ps ) {
+        int len = fwd.length( doc );
+        if( len == 0 ) return -1;
+        if( len > ps.buf.length ) grow( ps, len - 1 );
+        ps.max = len - 1;
+        fwd.read( doc, ps.buf );
+        return ps.max;
+    }
+
+    /**
+     * Populate this thread's buffer from the given document's term vector.
+     * @return The last populated position.
+     */
+    private int collect( int doc, Positions ps ) throws IOException {
+        Terms tv = indx.getTermVector( doc, lxcn.field() );
+        if( tv == null ) return -1;
+        int[] buf = ps.buf;
+        PostingsEnum p = null;
+        int rank = -1;
+        TermsEnum tEnum = lxcn.filter( tv );
+        // Collect position info for each term, in lexicographic order.
+        while( tEnum.next() != null ) {
+            rank = lxcn.rank( tEnum.term(), rank + 1 );
+            int t = lxcn.byRank( rank );
+            p = tEnum.postings( p, PostingsEnum.POSITIONS );
+            while( p.nextDoc() != PostingsEnum.NO_MORE_DOCS ) {
+                int f = p.freq();
+                for( int i = 0; i < f; i++ ) {
+                    int pos = p.nextPosition();
+                    if( pos < 0 ) continue; // no positions in term vector.
+                    if( pos >= buf.length ) buf = grow( ps, pos );
+                    ps.max = pos > ps.max ? pos : ps.max; // record max position
+                    buf[pos] = t;
+                }
+            }
         }
-        return m;
+        return ps.max;
+    }
+
+    /**
+     * Window counting kernel.
+     * 
+     * Scans the given position array, in which each slot contains the lexicon index for the term 
+     * found at that position or {@link #NO_TERM} for filtered positions, and adds the 
+     * corresponding weight from this worker's weight table for every pair of terms within the 
+     * window.
+     * 
+     * @param buf A position to lexicon index array.
+     * @param max The last populated position in buf.
+     * @param m   The matrix to add weights to.
+     */
+    private void count( int[] buf, int max, SparseMatrix m ) {
+        double[] w = weights;
+        for( int i = 0; i <= max; i++ ) {
+            int ti = buf[i];
+            if( ti == NO_TERM ) continue;
+            int lo = ( i - wPre < 0 ) ? 0 : i - wPre;
+            int hi = ( i + wPos > max ) ? max : i + wPos;
+            for( int j = lo; j <= hi; j++ ) {
+                if( i == j ) continue;
+                int tj = buf[j];
+                if( tj == NO_TERM ) continue; // j was a filtered term.
+                m.update( ti, tj, w[ j - i + wPre ] );
+            }
+        }
+    }
+
+    private static int[] grow( Positions ps, int pos ) {
+        int len = ps.buf.length;
+        while( len <= pos ) len <<= 1;
+        int[] out = Arrays.copyOf( ps.buf, len );
+        Arrays.fill( out, ps.buf.length, len, NO_TERM );
+        ps.buf = out;
+        return out;
+    }
+
+    private static long writeMerged( List<SparseMatrix.Cursor> srcs, Path file ) 
+    throws IOException {
+        try( SparseMatrix.Writer w = new SparseMatrix.Writer( file ) ) {
+            SparseMatrix.Cursor c = SparseMatrix.merge( srcs );
+            while( c.next() ) {
+                w.put( c.i(), c.j(), c.x() );
+            }
+            return w.count();
+        }
+    }
+
+    /**
+     * Number of matrices accumulated by this worker.
+     * @return The number of outputs in this worker's splits, or 1 if it has no splits.
+     */
+    public int size() {
+        return accs.length;
+    }
+
+    /**
+     * This worker's splits.
+     * @return The {@link DocMap} used to route documents to matrices, or {@code null}.
+     */
+    public DocMap<String> splits() {
+        return splits;
     }
 
     /**
      * Get this worker's results.
      * 
+     * Equivalent to {@link #data(int)} for the first matrix, which holds counts for all documents 
+     * if this worker has no splits.
+     * 
+     * @return A {@link SparseMatrix} with cooc counts from all documents processed so far.
+     */
+    public SparseMatrix data() {
+        return data( 0 );
+    }
+
+    /**
+     * Get this worker's results for the given split.
+     * 
      * Produces a {@link SparseMatrix} instance with cooccurrence counts for all processed 
-     * documents.
+     * documents in the given split.
      *
      * It is not recommended to call this method until all tasks produced by this worker have been 
      * executed, as this method will reap all internal data storages and merge them into one data 
      * set. Updates during this process may corrupt data or get lost.
      * 
+     * Elapsed time and peak heap usage are reported through this worker's {@link Status}.
+     * 
      * After this method returns, additional work can be submitted and executed, but the results 
      * of these will be accumulated from scratch.
      * 
-     * @return A {@link SparseMatrix} with cooc counts from all documents processed so far.
+     * @param split A split ordinal, as given by {@link DocMap#ordinal(int)}.
+     * @return A {@link SparseMatrix} with cooc counts from all documents in the given split 
+     *         processed so far.
      */
-    public SparseMatrix data() {
-        Logs.infof( "%s: merging %d partial datasets", NAME, matrices.size() );
-        Stopwatch sw = Stopwatch.createUnstarted();
-        int i = 0;
-        SparseMatrix out = matrices.get( i++ );
-        sw.start();
-        for( ; i < matrices.size(); i++ ) {
-            SparseMatrix m = matrices.get( i );
-            out.merge( m );
-            matrices.set( i, null );
-        }
-        matrices.clear();
-        sw.stop();
-        Logs.infof( "%s: datasets merged in %d seconds", NAME, sw.elapsed( TimeUnit.SECONDS ) );
-        return out;
+    public SparseMatrix data( int split ) {
+        return accs[split].data();
+    }
+
+    /**
+     * Write this worker's results to the given file.
+     * 
+     * Equivalent to {@link #write(int, java.nio.file.Path)} for the first matrix, which holds 
+     * counts for all documents if this worker has no splits.
+     * 
+     * @param file A {@link Path} to write the resulting matrix to.
+     * @return The number of entries written.
+     * @throws IOException 
+     */
+    public long write( Path file ) throws IOException {
+        return write( 0, file );
+    }
+
+    /**
+     * Write this worker's results for the given split to the given file.
+     * 
+     * Produces the same output as saving the result of {@link #data(int)}, but when a heap 
+     * budget has been set, spilled runs and any remaining partial results are combined with a 
+     * streaming k-way merge directly into the output file, without materializing the full matrix.
+     * 
+     * The same caveats as for {@link #data(int)} apply. Different splits can be written 
+     * concurrently.
+     * 
+     * @param split A split ordinal, as given by {@link DocMap#ordinal(int)}.
+     * @param file  A {@link Path} to write the resulting matrix to.
+     * @return The number of entries written.
+     * @throws IOException 
+     */
+    public long write( int split, Path file ) throws IOException {
+        return accs[split].write( file );
+    }
+
+    /**
+     * Number of documents that could not be counted due to read errors.
+     * 
+     * Failed documents are logged and skipped. Fork/join tasks produced by 
+     * {@link #work(edu.columbia.incite.corpus.DocSet, int)} also complete exceptionally with 
+     * the first error found in their range, after all other documents have been counted.
+     * 
+     * @return The number of failed documents so far.
+     */
+    public long failures() {
+        return failed.get();
     }
 
     public void report() {
@@ -213,4 +514,238 @@ public class CoocWorker {
         return this.prog.status();
     }
     
+
+    /**
+     * Partial results for a single split.
+     */
+    private class Accumulator {
+        private final ThreadLocal<SparseMatrix> tlMatrix = ThreadLocal.withInitial( () -> initData() );
+        private final List<SparseMatrix> matrices = new ArrayList<>();
+        private final List<Path> runs = new ArrayList<>();
+        private Path runDir;
+        private ShardedSparseMatrix shared;
+
+        Accumulator() {
+            this.shared = shards > 0 ? new ShardedSparseMatrix( shards, backend ) : null;
+        }
+
+        /**
+         * The matrix updates from the current thread should go to.
+         */
+        SparseMatrix target() {
+            return shared != null ? shared : tlMatrix.get();
+        }
+
+        void checkBudget() throws IOException {
+            SparseMatrix m = tlMatrix.get();
+            // Partials for all splits share the same budget.
+            long limit = budget / ( (long) backend.entryBytes * Math.max( 1, parts.get() ) );
+            if( m.size() > limit ) spill( m );
+        }
+
+        private void spill( SparseMatrix m ) throws IOException {
+            Path run = runFile();
+            SparseMatrix.save( m, run );
+            m.clear();
+            synchronized( runs ) {
+                runs.add( run );
+            }
+        }
+
+        /**
+         * Collapse spilled runs until no more than {@link #MAX_RUNS} remain, and open readers 
+         * over them.
+         */
+        private List<SparseMatrix.Reader> openRuns() throws IOException {
+            while( runs.size() > MAX_RUNS ) {
+                List<Path> batch = new ArrayList<>( runs.subList( 0, MAX_RUNS ) );
+                runs.subList( 0, MAX_RUNS ).clear();
+                Path run = runFile();
+                List<SparseMatrix.Reader> rdrs = new ArrayList<>();
+                try {
+                    for( Path p : batch ) rdrs.add( new SparseMatrix.Reader( p ) );
+                    writeMerged( new ArrayList<>( rdrs ), run );
+                } finally {
+                    for( SparseMatrix.Reader r : rdrs ) r.close();
+                }
+                for( Path p : batch ) Files.deleteIfExists( p );
+                runs.add( run );
+            }
+            List<SparseMatrix.Reader> out = new ArrayList<>();
+            for( Path p : runs ) out.add( new SparseMatrix.Reader( p ) );
+            return out;
+        }
+
+        private void closeRuns( List<SparseMatrix.Reader> rdrs ) throws IOException {
+            for( SparseMatrix.Reader r : rdrs ) r.close();
+            for( Path p : runs ) Files.deleteIfExists( p );
+            runs.clear();
+            synchronized( runs ) {
+                if( runDir != null ) Files.deleteIfExists( runDir );
+                runDir = null;
+            }
+        }
+
+        private Path runFile() throws IOException {
+            synchronized( runs ) {
+                if( runDir == null ) {
+                    Files.createDirectories( tmpDir );
+                    runDir = Files.createTempDirectory( tmpDir, RUN_DIR );
+                }
+                return runDir.resolve( String.format( RUN_FILE, runCt.getAndIncrement() ) );
+            }
+        }
+
+        private SparseMatrix initData() {
+            SparseMatrix m = backend.make();
+            synchronized( matrices ) {
+                matrices.add( m );
+            }
+            parts.incrementAndGet();
+            return m;
+        }
+
+        private void reap() {
+            parts.addAndGet( -matrices.size() );
+            matrices.clear();
+        }
+
+        SparseMatrix data() {
+            Stopwatch sw = Stopwatch.createStarted();
+            SparseMatrix out;
+            if( shared != null ) {
+                out = shared;
+                shared = new ShardedSparseMatrix( shared.shards(), backend );
+            } else {
+                Logs.infof( "%s: merging %d partial datasets", NAME, matrices.size() );
+                prog.memory();
+                // Parallel tree reduction, merging the smaller partial into the larger one.
+                out = matrices.parallelStream().reduce( ( m1, m2 ) -> {
+                    SparseMatrix tgt = m1.size() >= m2.size() ? m1 : m2;
+                    SparseMatrix src = tgt == m1 ? m2 : m1;
+                    tgt.merge( src );
+                    src.clear();
+                    return tgt;
+                } ).orElseGet( () -> backend.make() );
+                reap();
+                if( !runs.isEmpty() ) {
+                    Logs.infof( "%s: loading %d spilled runs", NAME, runs.size() );
+                    try {
+                        List<SparseMatrix.Reader> rdrs = openRuns();
+                        try {
+                            out.merge( SparseMatrix.merge( new ArrayList<>( rdrs ) ) );
+                        } finally {
+                            closeRuns( rdrs );
+                        }
+                    } catch( IOException ex ) {
+                        throw new UncheckedIOException( ex );
+                    }
+                }
+            }
+            sw.stop();
+            prog.memory();
+            Logs.infof( "%s: %d entries collected in %d seconds, peak heap usage %s", 
+                NAME, out.size(), sw.elapsed( TimeUnit.SECONDS ), Memory.humanSizes( prog.peakMemory() )
+            );
+            return out;
+        }
+
+        long write( Path file ) throws IOException {
+            if( runs.isEmpty() ) {
+                SparseMatrix m = data();
+                SparseMatrix.save( m, file );
+                return m.size();
+            }
+            Stopwatch sw = Stopwatch.createStarted();
+            List<SparseMatrix.Reader> rdrs = openRuns();
+            long n;
+            try {
+                Logs.infof( "%s: merging %d spilled runs and %d partial datasets", 
+                    NAME, rdrs.size(), matrices.size()
+                );
+                List<SparseMatrix.Cursor> srcs = new ArrayList<>( rdrs );
+                for( SparseMatrix m : matrices ) {
+                    if( m.size() > 0 ) srcs.add( m.cursor() );
+                }
+                n = writeMerged( srcs, file );
+            } finally {
+                closeRuns( rdrs );
+            }
+            reap();
+            sw.stop();
+            prog.memory();
+            Logs.infof( "%s: %d entries written in %d seconds, peak heap usage %s", 
+                NAME, n, sw.elapsed( TimeUnit.SECONDS ), Memory.humanSizes( prog.peakMemory() )
+            );
+            return n;
+        }
+    }
+
+    /**
+     * Per-thread position buffer.
+     * 
+     * Tracks the highest slot written since the last reset, so that used slots can be cleared 
+     * even if populating the buffer failed halfway through a document.
+     */
+    private static class Positions {
+        private int[] buf = new int[BUFFER_SIZE];
+        private int max = -1;
+
+        Positions() {
+            Arrays.fill( buf, NO_TERM );
+        }
+
+        void reset() {
+            Arrays.fill( buf, 0, max + 1, NO_TERM );
+            max = -1;
+        }
+    }
+
+    /**
+     * Fork/join task over a contiguous range of document numbers.
+     */
+    private class DocRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final BitSet bits;
+        private final int lo;
+        private final int hi;
+        private final int grain;
+
+        DocRange( BitSet bits, int lo, int hi, int grain ) {
+            this.bits = bits;
+            this.lo = lo;
+            this.hi = hi;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            int span = hi - lo;
+            if( span > grain || ( span > MIN_GRAIN && getSurplusQueuedTaskCount() <= SURPLUS ) ) {
+                int mid = ( lo + hi ) >>> 1;
+                invokeAll( new DocRange( bits, lo, mid, grain ), new DocRange( bits, mid, hi, grain ) );
+                return;
+            }
+            long done = 0;
+            IOException err = null;
+            for( int d = next( lo ); d < hi; d = next( d + 1 ) ) {
+                try {
+                    count( d );
+                } catch( IOException ex ) {
+                    failed.incrementAndGet();
+                    Logger.getLogger( CoocWorker.class.getName() ).log( Level.SEVERE, null, ex );
+                    if( err == null ) err = ex;
+                }
+                done++;
+            }
+            prog.update( done );
+            // Surface failures to whoever joins the root task, after counting the full range.
+            if( err != null ) completeExceptionally( err );
+        }
+
+        private int next( int from ) {
+            return from < hi ? bits.nextSetBit( from ) : DocIdSetIterator.NO_MORE_DOCS;
+        }
+    }
 }
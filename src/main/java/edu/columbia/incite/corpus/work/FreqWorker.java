@@ -18,20 +18,16 @@ package edu.columbia.incite.corpus.work;
 
 import edu.columbia.incite.corpus.Lexicon;
 import edu.columbia.incite.corpus.DocMap;
-import edu.columbia.incite.run.Status;
 import edu.columbia.incite.util.FileUtils;
 
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 import com.google.common.collect.BiMap;
 import org.apache.lucene.index.PostingsEnum;
-import org.apache.lucene.util.BytesRef;
 
 import edu.columbia.incite.run.Progress;
 import edu.columbia.incite.util.DSVWriter;
@@ -40,7 +36,7 @@ import edu.columbia.incite.util.DSVWriter;
  *
  * @author José Tomás Atria <jtatria@gmail.com>
  */
- public class FreqWorker {
+ public class FreqWorker extends TermWorker {
 
      public static final String NAME = "Counting frequencies";
     // data objects
@@ -50,9 +46,7 @@ import edu.columbia.incite.util.DSVWriter;
     public static final String NO_SPLIT_KEY = "total";
 
     // helper objects
-    private final Lexicon lxcn;
     private final DocMap<String> splits;
-    private final Status prog;
     
     public FreqWorker( Lexicon lxcn ) throws IOException {
         this( lxcn, null );
@@ -63,40 +57,40 @@ import edu.columbia.incite.util.DSVWriter;
     }
     
     public FreqWorker( Lexicon lxcn, DocMap<String> splits, Progress out ) {
-        this.lxcn = lxcn;
+        super( lxcn, NAME, out );
         this.splits = splits;
         this.data = new long[ lxcn.size ][ splits == null ? 1 : splits.numOutputs() ];
-        this.prog = out == null ? Status.make( NAME ) : new Status( NAME, out );
     }
 
+    @Override
     public int flags() {
         return PostingsEnum.FREQS;
     }
     
-    public Runnable work( final BytesRef term, final PostingsEnum pEnum ) {
-        prog.add();
-        return () -> {
-            try {
-                int row = lxcn.getIndex( term );
-                while( pEnum.nextDoc() != PostingsEnum.NO_MORE_DOCS ) {
-                    long freq = pEnum.freq();
-                    int doc = pEnum.docID();
-                    int col = (int) ( splits != null ? splits.outputKey( splits.get( doc ) ) : 0l );
-                    data[row][col] += freq;
-                }
-                prog.update();
-            } catch( IOException ex ) {
-                Logger.getLogger(FreqWorker.class.getName() ).log( Level.SEVERE, null, ex );
-            }
-        };
-    }
-    
-    public void report() {
-        this.prog.report();
-    }
-    
-    public long[] status() {
-        return this.prog.status();
+    /**
+     * Count frequencies for the given lexicon row from the given segment-level postings.
+     * 
+     * Counts are accumulated locally and added to the row at the end, so tasks for the same row 
+     * over different segments can run concurrently.
+     * 
+     * @param row     A lexicon index.
+     * @param pEnum   Postings for the row's term over a single segment.
+     * @param docBase The segment's doc base, used to look up splits.
+     * @throws IOException
+     */
+    @Override
+    protected void count( int row, PostingsEnum pEnum, int docBase ) throws IOException {
+        long[] acc = new long[ data[row].length ];
+        while( pEnum.nextDoc() != PostingsEnum.NO_MORE_DOCS ) {
+            long freq = pEnum.freq();
+            int doc = pEnum.docID();
+            int col = splits != null ? splits.ordinal( docBase + doc ) : 0;
+            if( col < 0 ) continue; // document has no split value.
+            acc[col] += freq;
+        }
+        synchronized( data[row] ) {
+            for( int col = 0; col < acc.length; col++ ) data[row][col] += acc[col];
+        }
     }
     
     public long[][] data() {
@@ -105,11 +99,16 @@ import edu.columbia.incite.util.DSVWriter;
 
     public static void write( Lexicon lxcn, long[][] data, DocMap<String> splits, Path file ) 
     throws IOException {
-        List<String> rows = Arrays.asList( lxcn.terms() );
         BiMap<Long,String> map = splits.outputMap();
         List<String> cols = map.keySet().stream().sorted().map(
             ( l ) -> map.get( l )
         ).collect( Collectors.toList() );
+        write( lxcn, data, cols, file );
+    }
+
+    public static void write( Lexicon lxcn, long[][] data, List<String> cols, Path file ) 
+    throws IOException {
+        List<String> rows = Arrays.asList( lxcn.terms() );
         DSVWriter.write( FileUtils.getWriter( file ), data, rows, cols, Lexicon.TERM_ID );
     }
 }
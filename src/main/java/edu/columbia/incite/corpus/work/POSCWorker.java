@@ -25,14 +25,10 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 import org.apache.lucene.index.PostingsEnum;
-import org.apache.lucene.util.BytesRef;
 
 import edu.columbia.incite.corpus.Lexicon;
-import edu.columbia.incite.run.Status;
 import edu.columbia.incite.run.Progress;
 import edu.columbia.incite.util.DSVWriter;
 
@@ -40,48 +36,41 @@ import edu.columbia.incite.util.DSVWriter;
  *
  * @author José Tomás Atria <jtatria@gmail.com>
  */
-public class POSCWorker {
+public class POSCWorker extends TermWorker {
     
     public static final String NAME = "Counting POS tags";
     // data objects
     private final long[][] data;
     
-    // helper objects
-    private final Lexicon lxcn;
-    private final Status prog;
-    
     public POSCWorker( Lexicon lxcn ) {
         this( lxcn, null );
     }
     
     public POSCWorker( Lexicon lxcn, Progress prog ) {
+        super( lxcn, NAME, prog );
         this.data = new long[ lxcn.size() ][ POSClass.values().length ];
-        this.lxcn = lxcn;
-        this.prog = prog == null ? Status.make( NAME ) : new Status( NAME, prog );
     }
     
+    @Override
     public int flags() {
         return PostingsEnum.ALL;
     }
     
-    public Runnable work( final BytesRef term, final PostingsEnum pEnum ) {
-        prog.add();
-        return () -> {
-            try {
-                int row = lxcn.getIndex( term );
-                while( pEnum.nextDoc() != PostingsEnum.NO_MORE_DOCS ) {
-                    int freq = pEnum.freq();
-                    for( int i = 0; i < freq; i++ ) {
-                        pEnum.nextPosition();
-                        POSClass pos = POSClass.getPOSClass( pEnum.getPayload() ); 
-                        data[row][pos.ordinal()]++;
-                    }
-                }
-                prog.update();
-            } catch( IOException ex ) {
-                Logger.getLogger(POSCWorker.class.getName() ).log( Level.SEVERE, null, ex );
+    @Override
+    protected void count( int row, PostingsEnum pEnum, int docBase ) throws IOException {
+        long[] acc = new long[ data[row].length ];
+        while( pEnum.nextDoc() != PostingsEnum.NO_MORE_DOCS ) {
+            int freq = pEnum.freq();
+            for( int i = 0; i < freq; i++ ) {
+                pEnum.nextPosition();
+                POSClass pos = POSClass.getPOSClass( pEnum.getPayload() ); 
+                acc[pos.ordinal()]++;
             }
-        };
+        }
+        // Rows may be shared by tasks over different segments.
+        synchronized( data[row] ) {
+            for( int col = 0; col < acc.length; col++ ) data[row][col] += acc[col];
+        }
     }
     
     public long[][] data() {
@@ -96,12 +85,4 @@ public class POSCWorker {
         }
         DSVWriter.write( FileUtils.getWriter( file ), data, rows, cols, Lexicon.TERM_ID );
     }
-    
-    public void report() {
-        this.prog.report();
-    }
-    
-    public long[] status() {
-        return this.prog.status();
-    }
 }
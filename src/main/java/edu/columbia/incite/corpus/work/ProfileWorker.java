@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.corpus.work;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.PostingsEnum;
+
+import edu.columbia.incite.corpus.DocMap;
+import edu.columbia.incite.corpus.Lexicon;
+import edu.columbia.incite.corpus.POSClass;
+import edu.columbia.incite.run.Progress;
+
+/**
+ * Corpus profile worker.
+ *
+ * Makes a single pass over each term's postings, with positions and payloads, to compute term
+ * frequencies and document frequencies for each split, and counts for each {@link POSClass}.
+ * This is equivalent to running a {@link FreqWorker} and a {@link POSCWorker} over the same
+ * documents, plus per-split document frequencies, at the I/O cost of the latter.
+ *
+ * Positions with payloads that don't map to a POS class are counted in frequencies, but not in
+ * POS counts.
+ *
+ * Documents with no split value are left out of term and document frequencies, as in
+ * {@link FreqWorker}. POS counts are not split, so they include all documents, as in
+ * {@link POSCWorker}.
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public class ProfileWorker extends TermWorker {
+
+    public static final String NAME = "Profiling corpus";
+    // data objects
+    private final long[][] tf;
+    private final long[][] df;
+    private final long[][] posc;
+
+    // helper objects
+    private final DocMap<String> splits;
+
+    public ProfileWorker( Lexicon lxcn ) {
+        this( lxcn, null );
+    }
+
+    public ProfileWorker( Lexicon lxcn, DocMap<String> splits ) {
+        this( lxcn, splits, null );
+    }
+
+    public ProfileWorker( Lexicon lxcn, DocMap<String> splits, Progress out ) {
+        super( lxcn, NAME, out );
+        this.splits = splits;
+        int cols = splits == null ? 1 : splits.numOutputs();
+        this.tf   = new long[ lxcn.size() ][ cols ];
+        this.df   = new long[ lxcn.size() ][ cols ];
+        this.posc = new long[ lxcn.size() ][ POSClass.values().length ];
+    }
+
+    @Override
+    public int flags() {
+        return PostingsEnum.ALL;
+    }
+
+    @Override
+    protected void count( int row, PostingsEnum pEnum, int docBase ) throws IOException {
+        long[] tfAcc = new long[ tf[row].length ];
+        long[] dfAcc = new long[ df[row].length ];
+        long[] pcAcc = new long[ posc[row].length ];
+        while( pEnum.nextDoc() != PostingsEnum.NO_MORE_DOCS ) {
+            int freq = pEnum.freq();
+            int col = splits != null ? splits.ordinal( docBase + pEnum.docID() ) : 0;
+            if( col >= 0 ) {
+                tfAcc[col] += freq;
+                dfAcc[col]++;
+            }
+            for( int i = 0; i < freq; i++ ) {
+                pEnum.nextPosition();
+                POSClass pos = POSClass.getPOSClass( pEnum.getPayload() );
+                if( pos != null ) pcAcc[pos.ordinal()]++;
+            }
+        }
+        // Rows may be shared by tasks over different segments.
+        synchronized( tf[row] ) {
+            for( int col = 0; col < tfAcc.length; col++ ) {
+                tf[row][col] += tfAcc[col];
+                df[row][col] += dfAcc[col];
+            }
+            for( int col = 0; col < pcAcc.length; col++ ) posc[row][col] += pcAcc[col];
+        }
+    }
+
+    /**
+     * Term frequencies, by lexicon index and split ordinal.
+     * @return A {@code long[][]} with the same layout as {@link FreqWorker#data()}.
+     */
+    public long[][] tf() {
+        return this.tf;
+    }
+
+    /**
+     * Document frequencies, by lexicon index and split ordinal.
+     * @return A {@code long[][]} with the same layout as {@link FreqWorker#data()}.
+     */
+    public long[][] df() {
+        return this.df;
+    }
+
+    /**
+     * POS counts, by lexicon index and {@link POSClass} ordinal.
+     * @return A {@code long[][]} with the same layout as {@link POSCWorker#data()}.
+     */
+    public long[][] posc() {
+        return this.posc;
+    }
+}
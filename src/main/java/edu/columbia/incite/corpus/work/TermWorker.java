@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.corpus.work;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+import edu.columbia.incite.corpus.DocSet;
+import edu.columbia.incite.corpus.Lexicon;
+import edu.columbia.incite.run.Progress;
+import edu.columbia.incite.run.Scheduler;
+import edu.columbia.incite.run.Status;
+
+/**
+ * Base class for term-at-a-time workers, that compute per-term data from the postings of each
+ * term in a lexicon.
+ *
+ * Work is scheduled in batches of consecutive lexicon ranks over a single segment: each batch task
+ * seeks its own terms and opens its own postings when it runs, so no postings enumerations are
+ * held by queued tasks.
+ *
+ * Implementations must allow concurrent calls to {@link #count(int, PostingsEnum, int)} for the
+ * same row, since a row's term is processed once per segment.
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public abstract class TermWorker {
+
+    // helper objects
+    protected final Lexicon lxcn;
+    protected final Status prog;
+
+    protected TermWorker( Lexicon lxcn, String name, Progress out ) {
+        this.lxcn = lxcn;
+        this.prog = out == null ? Status.make( name ) : new Status( name, out );
+    }
+
+    /**
+     * Postings flags required by this worker.
+     * @return A combination of {@link PostingsEnum} flags.
+     */
+    public abstract int flags();
+
+    /**
+     * Process the given postings for the given lexicon row.
+     *
+     * @param row     A lexicon index.
+     * @param pEnum   Postings for the row's term over a single segment.
+     * @param docBase The segment's doc base.
+     * @throws IOException
+     */
+    protected abstract void count( int row, PostingsEnum pEnum, int docBase ) throws IOException;
+
+    public Runnable work( final BytesRef term, final PostingsEnum pEnum ) {
+        return work( lxcn.getIndex( term ), pEnum );
+    }
+
+    public Runnable work( final int row, final PostingsEnum pEnum ) {
+        return work( row, pEnum, 0 );
+    }
+
+    public Runnable work( final int row, final PostingsEnum pEnum, final int docBase ) {
+        prog.add();
+        return () -> {
+            try {
+                count( row, pEnum, docBase );
+                prog.update();
+            } catch( IOException ex ) {
+                Logger.getLogger( getClass().getName() ).log( Level.SEVERE, null, ex );
+            }
+        };
+    }
+
+    /**
+     * Create a task that processes the terms at lexicon ranks [from, to) in the given segment.
+     *
+     * @param ctx  A segment.
+     * @param ds   A document set to filter postings with, or {@code null} for all documents.
+     * @param from First lexicon rank, inclusive.
+     * @param to   Last lexicon rank, exclusive.
+     * @return A Runnable.
+     */
+    public Runnable work( LeafReaderContext ctx, DocSet ds, int from, int to ) {
+        prog.add();
+        return batch( ctx, ds, from, to );
+    }
+
+    /**
+     * Submit batch tasks covering the whole lexicon in all segments of the given reader to the
+     * given scheduler.
+     *
+     * The total number of tasks is registered before any of them is submitted, so progress
+     * reports are accurate while the scheduler blocks.
+     *
+     * @param ir    An index reader.
+     * @param ds    A document set to filter postings with, or {@code null} for all documents.
+     * @param batch Number of consecutive lexicon ranks per task.
+     * @param sched A Scheduler.
+     * @throws IOException
+     * @throws InterruptedException If interrupted while waiting for the scheduler.
+     */
+    public void schedule( IndexReader ir, DocSet ds, int batch, Scheduler sched )
+    throws IOException, InterruptedException {
+        schedule( ir.leaves(), ds, batch, sched );
+    }
+
+    /**
+     * Submit batch tasks covering the whole lexicon in the given segments to the given 
+     * scheduler.
+     *
+     * @param leaves A list of segments.
+     * @param ds     A document set to filter postings with, or {@code null} for all documents.
+     * @param batch  Number of consecutive lexicon ranks per task.
+     * @param sched  A Scheduler.
+     * @throws IOException
+     * @throws InterruptedException If interrupted while waiting for the scheduler.
+     * @see #schedule(org.apache.lucene.index.IndexReader, edu.columbia.incite.corpus.DocSet, int, edu.columbia.incite.run.Scheduler)
+     */
+    public void schedule( List<LeafReaderContext> leaves, DocSet ds, int batch, Scheduler sched )
+    throws IOException, InterruptedException {
+        int batches = ( lxcn.size() + batch - 1 ) / batch;
+        int n = 0;
+        for( LeafReaderContext ctx : leaves ) {
+            if( ctx.reader().terms( lxcn.field() ) != null ) n++;
+        }
+        prog.add( (long) n * batches );
+        for( LeafReaderContext ctx : leaves ) {
+            if( ctx.reader().terms( lxcn.field() ) == null ) continue;
+            for( int lo = 0; lo < lxcn.size(); lo += batch ) {
+                sched.submit( batch( ctx, ds, lo, Math.min( lo + batch, lxcn.size() ) ) );
+            }
+        }
+    }
+
+    private Runnable batch( LeafReaderContext ctx, DocSet ds, int from, int to ) {
+        return () -> {
+            try {
+                Terms terms = ctx.reader().terms( lxcn.field() );
+                if( terms != null ) {
+                    TermsEnum tEnum = terms.iterator();
+                    PostingsEnum reuse = null;
+                    for( int r = from; r < to; r++ ) {
+                        if( !tEnum.seekExact( lxcn.termAt( r ) ) ) continue;
+                        reuse = tEnum.postings( reuse, flags() );
+                        PostingsEnum pEnum = ds != null ? ds.filter( reuse, ctx ) : reuse;
+                        count( lxcn.byRank( r ), pEnum, ctx.docBase );
+                    }
+                }
+            } catch( IOException ex ) {
+                // Fail the task: remaining terms in this batch would be silently missing.
+                throw new UncheckedIOException( ex );
+            } finally {
+                prog.update();
+            }
+        };
+    }
+
+    public void report() {
+        this.prog.report();
+    }
+
+    public long[] status() {
+        return this.prog.status();
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.run;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded task scheduler for worker jobs.
+ *
+ * Tasks are run on a work-stealing pool with a fixed number of threads, but at most 
+ * {@code threads + capacity} tasks may be pending at any given time: 
+ * {@link #submit(java.lang.Runnable)} blocks until a slot is free, so producers can't run ahead of 
+ * workers. Recursive jobs can instead be given as a single root {@link ForkJoinTask} via 
+ * {@link #fork(java.util.concurrent.ForkJoinTask)}, which splits itself as threads become idle.
+ *
+ * Progress is reported periodically from a separate timer thread while the scheduler is open, and
+ * callers wait for completion via {@link #await()} instead of polling.
+ *
+ * Tasks that fail with an unchecked exception are logged when {@link #await()} returns, and 
+ * counted in {@link #failures()}, so callers can abort a job with missing results.
+ *
+ * Instances run a single job: once {@link #await()} has been called, no more tasks can be
+ * submitted.
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public class Scheduler implements AutoCloseable {
+
+    /** Default period between progress reports, in milliseconds **/
+    public static final long REPORT_PERIOD = 500;
+
+    private final ForkJoinPool exec;
+    private final ScheduledExecutorService timer;
+    private final Semaphore slots;
+    private final List<ForkJoinTask<?>> roots = new ArrayList<>();
+    private final List<RuntimeException> errors = new ArrayList<>();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private Runnable reporter;
+    private ScheduledFuture<?> report;
+
+    /**
+     * Create a new scheduler.
+     *
+     * @param threads  Number of worker threads.
+     * @param capacity Maximum number of tasks waiting for a thread.
+     */
+    public Scheduler( int threads, int capacity ) {
+        this.exec  = new ForkJoinPool( threads );
+        this.timer = Executors.newSingleThreadScheduledExecutor();
+        this.slots = new Semaphore( threads + capacity );
+    }
+
+    /**
+     * Report progress by running the given reporter every {@link #REPORT_PERIOD} milliseconds
+     * until all tasks are done, and once more after that.
+     *
+     * @param reporter A progress reporter, e.g. a {@link Status#report()} reference.
+     * @return This scheduler.
+     */
+    public Scheduler report( Runnable reporter ) {
+        return report( reporter, REPORT_PERIOD, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Report progress by running the given reporter at the given rate until all tasks are done,
+     * and once more after that.
+     *
+     * @param reporter A progress reporter, e.g. a {@link Status#report()} reference.
+     * @param period   Time between reports.
+     * @param unit     Time unit for period.
+     * @return This scheduler.
+     */
+    public Scheduler report( Runnable reporter, long period, TimeUnit unit ) {
+        if( this.report != null ) this.report.cancel( false );
+        this.reporter = reporter;
+        this.report = timer.scheduleAtFixedRate( reporter, period, period, unit );
+        return this;
+    }
+
+    /**
+     * Submit a task, blocking until a slot is available if the scheduler is at capacity.
+     *
+     * @param task A task.
+     * @throws InterruptedException If interrupted while waiting for a slot.
+     */
+    public void submit( Runnable task ) throws InterruptedException {
+        slots.acquire();
+        try {
+            exec.execute( () -> {
+                try {
+                    task.run();
+                } catch( RuntimeException ex ) {
+                    failed.incrementAndGet();
+                    synchronized( errors ) {
+                        errors.add( ex );
+                    }
+                } finally {
+                    slots.release();
+                }
+            } );
+        } catch( RejectedExecutionException ex ) {
+            slots.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Run the given recursive task. Root tasks are not bounded by this scheduler's capacity.
+     * 
+     * @param task A fork/join task.
+     */
+    public void fork( ForkJoinTask<?> task ) {
+        roots.add( task );
+        exec.execute( task );
+    }
+
+    /**
+     * Stop accepting tasks and block until all submitted tasks are done.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void await() throws InterruptedException {
+        exec.shutdown();
+        while( !exec.awaitTermination( REPORT_PERIOD, TimeUnit.MILLISECONDS ) );
+        for( ForkJoinTask<?> task : roots ) {
+            if( task.isCompletedAbnormally() ) {
+                failed.incrementAndGet();
+                Logger.getLogger( Scheduler.class.getName() ).log( 
+                    Level.SEVERE, null, task.getException()
+                );
+            }
+        }
+        synchronized( errors ) {
+            for( RuntimeException ex : errors ) {
+                Logger.getLogger( Scheduler.class.getName() ).log( Level.SEVERE, null, ex );
+            }
+        }
+        if( report != null ) {
+            report.cancel( false );
+            reporter.run();
+        }
+        timer.shutdown();
+    }
+
+    /**
+     * Number of tasks that failed, including root tasks that completed abnormally.
+     * 
+     * Only complete after {@link #await()} has returned.
+     *
+     * @return The number of failed tasks.
+     */
+    public int failures() {
+        return failed.get();
+    }
+
+    /**
+     * Release this scheduler's threads, cancelling pending tasks if {@link #await()} was not
+     * called or did not finish.
+     */
+    @Override
+    public void close() {
+        exec.shutdownNow();
+        timer.shutdownNow();
+    }
+}
@@ -59,6 +59,8 @@ public class Status {
     private final AtomicBoolean allDone   = new AtomicBoolean( false );
     /* final report after completed */
     private final AtomicBoolean outDone   = new AtomicBoolean();
+    /* peak heap usage observed */
+    private final AtomicLong    peakMem   = new AtomicLong();
     
     /* progress outputs */
     private final List<Progress> outputs = new ArrayList<>();
@@ -198,6 +200,32 @@ public class Status {
         return taskTotal.get() - taskDone.get();
     }
     
+    /**
+     * Sample current heap usage, recording it if it exceeds the peak observed so far.
+     * 
+     * Heap usage is sampled automatically on every report, but workers may call this method 
+     * directly at points of known high memory pressure.
+     * 
+     * @return Current heap usage in bytes.
+     */
+    public long memory() {
+        Runtime rt = Runtime.getRuntime();
+        long used = rt.totalMemory() - rt.freeMemory();
+        peakMem.accumulateAndGet( used, Math::max );
+        return used;
+    }
+    
+    /**
+     * Peak heap usage observed by this progress.
+     * 
+     * See {@link #memory()}.
+     * 
+     * @return Peak heap usage in bytes.
+     */
+    public long peakMemory() {
+        return peakMem.get();
+    }
+    
     /**
      * Print a message with the current status of this progress.
      */
@@ -237,6 +265,7 @@ public class Status {
         if( allDone.get() && outDone.getAndSet( true ) ) return;
         long now = System.nanoTime();
         if( !allDone.get() && ( now - lastTime.getAndSet( now ) ) <= RATELIMIT ) return;
+        memory();
         allDone.set( i >= this.taskTotal.get() );
         for( Progress report : outputs ) {
             report.report( name, status(), debug );
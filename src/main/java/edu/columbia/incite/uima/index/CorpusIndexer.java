@@ -41,6 +41,7 @@ import org.apache.lucene.util.BytesRef;
 import org.apache.uima.UimaContext;
 import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
 import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.jcas.JCas;
 import org.apache.uima.fit.descriptor.ExternalResource;
 import org.apache.uima.resource.ResourceInitializationException;
 import org.apache.uima.util.Level;
@@ -64,6 +65,10 @@ public class CorpusIndexer extends SegmentedProcessor {
     @ConfigurationParameter( name = PARAM_ADD_DOC_FIELDS, mandatory = false, defaultValue = "true" )
     protected Boolean addDocFields;
 
+    public static final String PARAM_DOC_VALUES = "docValues";
+    @ConfigurationParameter( name = PARAM_DOC_VALUES, mandatory = false, defaultValue = "false" )
+    protected Boolean docValues;
+
     public static final String RES_LUCENEFB = "fieldBroker";
     @ExternalResource( key = RES_LUCENEFB, mandatory = false )
     private FeatureBroker<Document> fieldBroker;
@@ -88,6 +93,7 @@ public class CorpusIndexer extends SegmentedProcessor {
     private final Table<String,IndexableField,UIMATokenStream> streams = HashBasedTable.create();
     private Document docInstance;
     private Long wrtrSssn;
+    private String docId;
     
     @Override
     public void initialize( UimaContext ctx ) throws ResourceInitializationException {
@@ -98,7 +104,7 @@ public class CorpusIndexer extends SegmentedProcessor {
         
         // Document metadata
         if( addDocFields ) {
-            this.fieldBroker = fieldBroker == null ? new InciteLuceneBroker() : fieldBroker;
+            this.fieldBroker = fieldBroker == null ? new InciteLuceneBroker( docValues ) : fieldBroker;
         }
         
         // Stream fields
@@ -130,6 +136,13 @@ public class CorpusIndexer extends SegmentedProcessor {
         }
     }
         
+    @Override
+    protected void preProcess( JCas jcas ) throws AnalysisEngineProcessException {
+        super.preProcess( jcas );
+        // Sort key for sharded index writers.
+        this.docId = getDocumentId();
+    }
+
     @Override
     protected void processSegment( AnnotationFS seg ) throws AnalysisEngineProcessException {
         try {
@@ -162,7 +175,7 @@ public class CorpusIndexer extends SegmentedProcessor {
             
             // write to index
             if( !dryRun ) {
-                this.indexWriter.index( docInstance );
+                this.indexWriter.index( wrtrSssn, docId, seg.getBegin(), docInstance );
             }
             
         } catch ( IOException | CASException ex ) {
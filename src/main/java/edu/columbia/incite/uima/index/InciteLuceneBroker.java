@@ -22,11 +22,18 @@ import java.util.Map;
 import java.util.function.Supplier;
 
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DoubleDocValuesField;
 import org.apache.lucene.document.DoubleField;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.IntField;
 import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
 import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.BytesRef;
+import org.apache.uima.fit.descriptor.ConfigurationParameter;
 
 import edu.columbia.incite.uima.index.Tokenizer;
 import edu.columbia.incite.uima.tools.InciteBroker;
@@ -34,6 +41,11 @@ import edu.columbia.incite.uima.tools.InciteBroker;
 /**
  * An InciteBroker to create and populate instances od Lucene's @link{Document}.
  * 
+ * If doc values are enabled, every metadata field is also added as a single-valued doc values 
+ * column: {@link SortedDocValuesField} for strings, {@link NumericDocValuesField} for integers and 
+ * booleans and {@link DoubleDocValuesField} for reals. Only the first value for each field in a 
+ * document is written to its column.
+ * 
  * @author José Tomás Atria <jtatria@gmail.com>
  */
 public class InciteLuceneBroker extends InciteBroker<Document> {
@@ -45,20 +57,46 @@ public class InciteLuceneBroker extends InciteBroker<Document> {
     public static final Double  DFLT_REAL     = ByteBuffer.wrap( DEAD_BEEF ).getDouble();
     public static final Integer DFLT_BOOLEAN  = -1;
         
+    public static final String PARAM_DOC_VALUES = "docValues";
+    @ConfigurationParameter( name = PARAM_DOC_VALUES, mandatory = false, defaultValue = "false" )
+    private boolean docValues;
+        
     private final ThreadLocal<Map<String,Field>> fCache = ThreadLocal.withInitial(
         () -> new HashMap<>() 
     );
     
+    private final ThreadLocal<Map<String,Field>> dvCache = ThreadLocal.withInitial(
+        () -> new HashMap<>() 
+    );
+    
+    public InciteLuceneBroker() {
+        this( false );
+    }
+    
+    public InciteLuceneBroker( boolean docValues ) {
+        this.docValues = docValues;
+    }
+    
     protected Field getField( String key, final Types dfType ) {
         return fCache.get().computeIfAbsent( key, s -> createField( s, dfType ) );
     }
 
+    protected Field getDocValuesField( String key, final Types dfType ) {
+        return dvCache.get().computeIfAbsent( key, s -> createDocValuesField( s, dfType ) );
+    }
+
     @Override
     protected void addData( String key, Object v, Types dfType, Document tgt ) {
         Field lf = getField( key, dfType );
         if( lf == null ) throw new IllegalStateException();
         update( lf, v, dfType );
         tgt.add( lf );
+        
+        if( docValues && v != null && !hasDocValues( key, tgt ) ) {
+            Field dvf = getDocValuesField( key, dfType );
+            updateDocValues( dvf, v, dfType );
+            tgt.add( dvf );
+        }
     }
 
     @Override
@@ -76,6 +114,16 @@ public class InciteLuceneBroker extends InciteBroker<Document> {
         }
     }
 
+    public static Field createDocValuesField( String name, Types dfType ) {
+        switch( dfType ) {
+            case STRING  : return new SortedDocValuesField(  name, new BytesRef( DFLT_STRING ) );
+            case INTEGER : return new NumericDocValuesField( name, DFLT_INTEGER );
+            case REAL    : return new DoubleDocValuesField(  name, DFLT_REAL );
+            case BOOLEAN : return new NumericDocValuesField( name, DFLT_BOOLEAN );
+            default: throw new AssertionError( dfType.name() );
+        }
+    }
+
     public static void update( Field lf, Object v, Types dfType ) {
         switch( dfType ) {
             case STRING  : lf.setStringValue(   (String) v );                 break;
@@ -85,4 +133,23 @@ public class InciteLuceneBroker extends InciteBroker<Document> {
             default : throw new AssertionError( dfType.name() );
         }
     }
+
+    public static void updateDocValues( Field dvf, Object v, Types dfType ) {
+        switch( dfType ) {
+            case STRING  : dvf.setBytesValue( new BytesRef( (String) v ) );  break;
+            case INTEGER : dvf.setLongValue( ( (Number) v ).longValue() );    break;
+            case REAL    : dvf.setDoubleValue( ( (Number) v ).doubleValue() ); break;
+            case BOOLEAN : dvf.setLongValue( ( (Boolean) v ) ? 1 : 0 );       break;
+            default : throw new AssertionError( dfType.name() );
+        }
+    }
+    
+    private static boolean hasDocValues( String key, Document tgt ) {
+        for( IndexableField f : tgt.getFields() ) {
+            if( f.fieldType().docValuesType() != DocValuesType.NONE && f.name().equals( key ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -17,18 +17,45 @@
 package edu.columbia.incite.uima.index;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import com.google.common.base.Stopwatch;
+import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.SlowCodecReaderWrapper;
+import org.apache.lucene.index.SlowCompositeReaderWrapper;
+import org.apache.lucene.index.SortingLeafReader;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.BytesRef;
 import org.apache.uima.fit.descriptor.ConfigurationParameter;
 import org.apache.uima.resource.ResourceInitializationException;
 import org.apache.uima.resource.ResourceSpecifier;
@@ -42,6 +69,25 @@ import edu.columbia.incite.uima.SessionResource;
  * Instances if this class will configure, open, grant access, keep track of components using and 
  * close an IndexWriter safely and consistently.
  * 
+ * In asynchronous mode, {@link #index(org.apache.lucene.document.Document)} only takes a snapshot 
+ * of the given document and hands it to a bounded queue, blocking only if the queue is full. A 
+ * fixed number of indexing threads drain the queue, adding documents to the index in batches. 
+ * Callers can reuse their document instances, fields and token streams as soon as 
+ * {@link #index(org.apache.lucene.document.Document)} returns. Closing the last session waits 
+ * for all queued documents to be indexed before committing. Indexing errors are reported on the 
+ * next call to {@link #index(org.apache.lucene.document.Document)}. Document order in the index 
+ * is not guaranteed with more than one indexing thread.
+ * 
+ * In sharded mode, documents given to 
+ * {@link #index(java.lang.Long, java.lang.String, long, org.apache.lucene.document.Document)} are 
+ * written to a separate sub-index for each session, so that components running on different 
+ * threads never contend for the same writer. Each document is stamped with the given key and 
+ * sequence number as doc values in {@link #FIELD_SHARD_KEY} and {@link #FIELD_SHARD_SEQ}. When the 
+ * last session is closed, all sub-indexes are added to the target index as a single segment 
+ * sorted by key and sequence number, so document order does not depend on which session indexed 
+ * each document. Sub-indexes are written to a new temporary directory next to the index 
+ * directory, which is deleted afterwards.
+ * 
  * @author José Tomás Atria <jtatria@gmail.com>
  */
 public class LuceneIndexWriter extends SessionResource.Base {
@@ -89,9 +135,11 @@ public class LuceneIndexWriter extends SessionResource.Base {
 
     /**
      * Advanced: force index optimization on close.
+     * 
+     * Not needed for analysis, which runs over each segment in parallel.
      */
     public static final String PARAM_OPTIMIZE = "optimize";
-    @ConfigurationParameter( name = PARAM_OPTIMIZE, mandatory = false, defaultValue = "true",
+    @ConfigurationParameter( name = PARAM_OPTIMIZE, mandatory = false, defaultValue = "false",
         description = "Optimize index on close"
     )
     private Boolean optimize;
@@ -114,7 +162,82 @@ public class LuceneIndexWriter extends SessionResource.Base {
     )
     private Boolean wipeExisting;
 
+    /**
+     * Index documents asynchronously from a bounded queue.
+     */
+    public static final String PARAM_ASYNC = "async";
+    @ConfigurationParameter( name = PARAM_ASYNC, mandatory = false, defaultValue = "false",
+        description = "Index documents asynchronously on dedicated threads"
+    )
+    private Boolean async;
+
+    /**
+     * Asynchronous mode: number of indexing threads.
+     */
+    public static final String PARAM_INDEX_THREADS = "indexThreads";
+    @ConfigurationParameter( name = PARAM_INDEX_THREADS, mandatory = false, defaultValue = "2",
+        description = "Number of indexing threads in asynchronous mode"
+    )
+    private Integer indexThreads;
+
+    /**
+     * Asynchronous mode: maximum number of documents waiting to be indexed.
+     */
+    public static final String PARAM_QUEUE_SIZE = "queueSize";
+    @ConfigurationParameter( name = PARAM_QUEUE_SIZE, mandatory = false, defaultValue = "1024",
+        description = "Maximum number of queued documents in asynchronous mode"
+    )
+    private Integer queueSize;
+
+    /**
+     * Asynchronous mode: maximum number of documents added to the index at once.
+     */
+    public static final String PARAM_BATCH_SIZE = "batchSize";
+    @ConfigurationParameter( name = PARAM_BATCH_SIZE, mandatory = false, defaultValue = "64",
+        description = "Maximum number of documents per indexing batch in asynchronous mode"
+    )
+    private Integer batchSize;
+
+    /**
+     * Write each session's documents to its own index, and combine all of them on close.
+     */
+    public static final String PARAM_SHARDED = "sharded";
+    @ConfigurationParameter( name = PARAM_SHARDED, mandatory = false, defaultValue = "false",
+        description = "Write a separate sub-index for each session and add them all on close"
+    )
+    private Boolean sharded;
+
+    /**
+     * Prefix for the temporary directory holding sub-indexes in sharded mode, after the index 
+     * directory's name.
+     */
+    public static final String SHARDS_PREFIX = ".shards-";
+
+    /**
+     * Sharded mode: doc values field holding each document's sort key.
+     */
+    public static final String FIELD_SHARD_KEY = "_shard_key";
+
+    /**
+     * Sharded mode: doc values field holding each document's sequence number within its key.
+     */
+    public static final String FIELD_SHARD_SEQ = "_shard_seq";
+
+    // Final document order in sharded mode.
+    private static final Sort SHARD_SORT = new Sort(
+        new SortField( FIELD_SHARD_KEY, SortField.Type.STRING ),
+        new SortField( FIELD_SHARD_SEQ, SortField.Type.LONG )
+    );
+
+    // Queue end marker.
+    private static final Document EOQ = new Document();
+
     private IndexWriter writer;
+    private final Map<Long,Shard> shards = new ConcurrentHashMap<>();
+    private Path shardsDir;
+    private BlockingQueue<Document> queue;
+    private ExecutorService indexers;
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
 
     @Override
     public boolean initialize( ResourceSpecifier spec, Map<String,Object> params )
@@ -138,14 +261,29 @@ public class LuceneIndexWriter extends SessionResource.Base {
 
             FSDirectory dir = FSDirectory.open( path );
 
-            IndexWriterConfig conf = new IndexWriterConfig( null );
-            conf.setOpenMode(        update           ? OpenMode.APPEND : OpenMode.CREATE );
-            conf.setRAMBufferSizeMB( rbSize   != null ? rbSize   : conf.getRAMBufferSizeMB() );
-            conf.setUseCompoundFile( compound != null ? compound : conf.getUseCompoundFile() );
-            conf.setCommitOnClose( true );
-
+            IndexWriterConfig conf = config( update ? OpenMode.APPEND : OpenMode.CREATE );
             writer = new IndexWriter( dir, conf );
             
+            if( sharded ) {
+                if( async ) getLogger().log( Level.WARNING, 
+                    "WriterProvider: Asynchronous mode is ignored in sharded mode."
+                );
+                Path abs = path.toAbsolutePath();
+                shardsDir = Files.createTempDirectory( 
+                    abs.getParent(), abs.getFileName().toString() + SHARDS_PREFIX 
+                );
+                getLogger().log( Level.INFO,
+                    "WriterProvider: Writing sub-indexes to {0}.", shardsDir.toString()
+                );
+            } else if( async ) {
+                queue = new ArrayBlockingQueue<>( queueSize );
+                indexers = Executors.newFixedThreadPool( indexThreads );
+                for( int i = 0; i < indexThreads; i++ ) indexers.execute( this::drain );
+                getLogger().log( Level.INFO,
+                    "WriterProvider: Indexing asynchronously on {0} threads.", indexThreads
+                );
+            }
+            
             getLogger().log( Level.INFO,
                 "WriterProvider: Writing index to directory {0} with codec {1}."
                 , new Object[]{ dir.getDirectory().toString(), conf.getCodec().getName() }
@@ -156,12 +294,174 @@ public class LuceneIndexWriter extends SessionResource.Base {
 
     }
 
+    private IndexWriterConfig config( OpenMode mode ) {
+        IndexWriterConfig conf = new IndexWriterConfig( null );
+        conf.setOpenMode(        mode );
+        conf.setRAMBufferSizeMB( rbSize   != null ? rbSize   : conf.getRAMBufferSizeMB() );
+        conf.setUseCompoundFile( compound != null ? compound : conf.getUseCompoundFile() );
+        conf.setCommitOnClose( true );
+        return conf;
+    }
+
+    /**
+     * Index the given document on behalf of the given session.
+     * 
+     * In sharded mode, the document is stamped with the given key and sequence number and added 
+     * to the session's sub-index. Documents are ordered by key and then by sequence number in the 
+     * final index, e.g. by document id and segment offset. Otherwise, this is equivalent to 
+     * {@link #index(org.apache.lucene.document.Document)}, and key and sequence are ignored.
+     * 
+     * @param sssn A session token obtained from {@link #openSession()}.
+     * @param key  The document's sort key.
+     * @param seq  The document's sequence number among documents with the same key.
+     * @param doc  A document.
+     * @throws IOException 
+     */
+    public void index( Long sssn, String key, long seq, Document doc ) throws IOException {
+        if( !sharded ) {
+            index( doc );
+            return;
+        }
+        Shard shard = shards.get( sssn );
+        if( shard == null ) {
+            shard = new Shard( shardsDir.resolve( String.format( "%08d", sssn ) ) );
+            shards.put( sssn, shard );
+        }
+        shard.add( key, seq, doc );
+    }
+
+    // Close all sub-indexes and add them to the target index, sorted by key and sequence.
+    private void combine() throws IOException {
+        if( shardsDir == null ) return;
+        List<IndexReader> rdrs = new ArrayList<>();
+        try {
+            for( Shard shard : shards.values() ) {
+                shard.writer.close();
+                rdrs.add( DirectoryReader.open( shard.writer.getDirectory() ) );
+            }
+            if( !rdrs.isEmpty() ) {
+                getLogger().log( Level.INFO, "Adding {0} sub-indexes to index.", rdrs.size() );
+                Stopwatch sw = Stopwatch.createStarted();
+                MultiReader all = new MultiReader( rdrs.toArray( new IndexReader[ rdrs.size() ] ) );
+                writer.addIndexes( SlowCodecReaderWrapper.wrap( SortingLeafReader.wrap(
+                    SlowCompositeReaderWrapper.wrap( all ), SHARD_SORT
+                ) ) );
+                sw.stop();
+                getLogger().log( 
+                    Level.INFO, "Sub-indexes added in {0} seconds.", sw.elapsed( TimeUnit.SECONDS ) 
+                );
+            }
+        } finally {
+            for( IndexReader r : rdrs ) r.close();
+            for( Shard shard : shards.values() ) shard.writer.getDirectory().close();
+            shards.clear();
+            delete( shardsDir );
+            shardsDir = null;
+        }
+    }
+
+    private static void delete( Path path ) throws IOException {
+        if( !Files.exists( path ) ) return;
+        try( Stream<Path> files = Files.walk( path ) ) {
+            for( Path p : files.sorted( Comparator.reverseOrder() ).collect( Collectors.toList() ) ) {
+                Files.delete( p );
+            }
+        }
+    }
+
     public void index( Document doc ) throws IOException {
-        writer.addDocument( doc );
+        if( !async ) {
+            writer.addDocument( doc );
+            return;
+        }
+        check();
+        try {
+            queue.put( snapshot( doc ) );
+        } catch( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( ex.getMessage() );
+        }
+    }
+
+    // Rethrow the first error found by indexing threads, if any.
+    private void check() throws IOException {
+        Throwable t = error.get();
+        if( t == null ) return;
+        if( t instanceof IOException ) throw (IOException) t;
+        throw new IOException( "Asynchronous indexing failed", t );
+    }
+
+    // Indexing thread loop: add queued documents in batches until the end marker is found.
+    private void drain() {
+        List<Document> batch = new ArrayList<>( batchSize );
+        boolean done = false;
+        while( !done ) {
+            try {
+                batch.add( queue.take() );
+                queue.drainTo( batch, batchSize - 1 );
+                int n = batch.size();
+                batch.removeIf( ( d ) -> d == EOQ );
+                // Put back other threads' end markers.
+                for( int i = 1; i < n - batch.size(); i++ ) queue.put( EOQ );
+                done = batch.size() < n;
+                if( !batch.isEmpty() && error.get() == null ) writer.addDocuments( batch );
+            } catch( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+                done = true;
+            } catch( IOException | RuntimeException ex ) {
+                error.compareAndSet( null, ex );
+            }
+            batch.clear();
+        }
+    }
+
+    // Wait for indexing threads to index all queued documents.
+    private void await() throws IOException {
+        if( indexers == null ) return;
+        try {
+            for( int i = 0; i < indexThreads; i++ ) queue.put( EOQ );
+            indexers.shutdown();
+            while( !indexers.awaitTermination( 1, TimeUnit.SECONDS ) );
+        } catch( InterruptedException ex ) {
+            indexers.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( ex.getMessage() );
+        } finally {
+            indexers = null;
+        }
+        check();
+    }
+
+    /**
+     * Create a copy of the given document that is independent of the given document's fields.
+     * 
+     * Field values are copied, and token streams are consumed and replaced by a replay of their 
+     * tokens, so the given document and its fields can be reused immediately.
+     * 
+     * @param doc A document.
+     * @return A new document with the same field values.
+     * @throws IOException If consuming a token stream fails.
+     */
+    static Document snapshot( Document doc ) throws IOException {
+        Document out = new Document();
+        for( IndexableField f : doc.getFields() ) {
+            out.add( f instanceof Field ? new FieldSnapshot( (Field) f ) : f );
+        }
+        return out;
     }
 
     @Override
     public void closeResource() {
+        try {
+            await();
+        } catch( IOException ex ) {
+            getLogger().log( Level.SEVERE, "Asynchronous indexing failed!", ex );
+        }
+        try {
+            combine();
+        } catch( IOException ex ) {
+            getLogger().log( Level.SEVERE, "I/O error when trying to add sub-indexes!", ex );
+        }
         try {
             if( optimize ) {
                 getLogger().log( Level.INFO,
@@ -196,4 +496,111 @@ public class LuceneIndexWriter extends SessionResource.Base {
             getLogger().log( Level.SEVERE, "I/O error when trying to close index writer!", ex );
         }
     }
+
+    /**
+     * A session's sub-index, with reusable fields for document stamps.
+     * 
+     * Each session is used by a single component, so instances are not thread-safe.
+     */
+    private final class Shard {
+        private final IndexWriter writer;
+        private final SortedDocValuesField key = new SortedDocValuesField( FIELD_SHARD_KEY, new BytesRef() );
+        private final NumericDocValuesField seq = new NumericDocValuesField( FIELD_SHARD_SEQ, 0 );
+
+        Shard( Path path ) throws IOException {
+            Files.createDirectories( path );
+            this.writer = new IndexWriter( FSDirectory.open( path ), config( OpenMode.CREATE ) );
+        }
+
+        void add( String k, long s, Document doc ) throws IOException {
+            key.setBytesValue( new BytesRef( k ) );
+            seq.setLongValue( s );
+            doc.add( key );
+            doc.add( seq );
+            try {
+                writer.addDocument( doc );
+            } finally {
+                doc.removeFields( FIELD_SHARD_KEY );
+                doc.removeFields( FIELD_SHARD_SEQ );
+            }
+        }
+    }
+
+    /**
+     * Field holding a copy of another field's value.
+     */
+    private static class FieldSnapshot extends Field {
+        FieldSnapshot( Field src ) throws IOException {
+            super( src.name(), src.fieldType() );
+            this.boost = src.boost();
+            if( src.tokenStreamValue() != null ) {
+                this.fieldsData = null;
+                this.tokenStream = new TokenSnapshot( src.tokenStreamValue() );
+            } else if( src.numericValue() != null ) {
+                this.fieldsData = src.numericValue();
+            } else if( src.binaryValue() != null ) {
+                this.fieldsData = BytesRef.deepCopyOf( src.binaryValue() );
+            } else if( src.stringValue() != null ) {
+                this.fieldsData = src.stringValue();
+            } else {
+                this.fieldsData = src.readerValue();
+            }
+        }
+    }
+
+    /**
+     * Token stream replaying the tokens produced by another token stream.
+     * 
+     * The source stream is consumed on construction, and token attribute states are captured 
+     * into attributes that are not shared with the source stream.
+     */
+    private static final class TokenSnapshot extends TokenStream {
+        private final List<State> states = new ArrayList<>();
+        private final State end;
+        private int cur;
+
+        TokenSnapshot( TokenStream src ) throws IOException {
+            this( src, new ArrayList<>() );
+        }
+
+        private TokenSnapshot( TokenStream src, List<State> states ) throws IOException {
+            super( consume( src, states ) );
+            this.end = states.remove( states.size() - 1 );
+            this.states.addAll( states );
+        }
+
+        // Consume src into the given list, adding its end state last, and return a detached copy 
+        // of its attributes.
+        private static AttributeSource consume( TokenStream src, List<State> states ) 
+        throws IOException {
+            try {
+                src.reset();
+                while( src.incrementToken() ) states.add( src.captureState() );
+                src.end();
+                states.add( src.captureState() );
+                return src.cloneAttributes();
+            } finally {
+                src.close();
+            }
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            cur = 0;
+        }
+
+        @Override
+        public boolean incrementToken() {
+            if( cur >= states.size() ) return false;
+            restoreState( states.get( cur++ ) );
+            return true;
+        }
+
+        @Override
+        public void end() throws IOException {
+            super.end();
+            restoreState( end );
+        }
+    }
 }
@@ -0,0 +1,359 @@
+/* 
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import edu.columbia.incite.run.Logs;
+import edu.columbia.incite.util.SparseMatrix.Cursor;
+import edu.columbia.incite.util.SparseMatrix.Visitor;
+
+/**
+ * Read-only, off-heap view of a SparseMatrix file as written by 
+ * {@link SparseMatrix#save(edu.columbia.incite.util.SparseMatrix, java.nio.file.Path)}.
+ * 
+ * The data file is memory-mapped directly, in windows of at most {@link #CHUNK_SIZE} bytes, so 
+ * opening a matrix of any size costs no heap beyond a row-offset index with one {@code long} per 
+ * row. The index is stored alongside the data file with the {@link #INDEX_EXT} extension; it is 
+ * built with one sequential scan over the data the first time a file is opened, and rebuilt 
+ * whenever it is found to be older than the data file.
+ * 
+ * Instances of this class are thread-safe, as all reads are absolute.
+ * 
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public class MappedSparseMatrix implements Closeable {
+    
+    /** Extension for row index files. **/
+    public static final String INDEX_EXT = ".idx";
+    /** Maximum size for each mapped window, in bytes. Always a multiple of the record size. **/
+    public static final long CHUNK_SIZE = ( Integer.MAX_VALUE / SparseMatrix.size_t ) * (long) SparseMatrix.size_t;
+    
+    private static final long INDEX_MAGIC = 0x4c58534d49445831l; // "LXSMIDX1"
+    private static final long RECS_PER_CHUNK = CHUNK_SIZE / SparseMatrix.size_t;
+    
+    private final Path path;
+    private final long entries;
+    private final ByteBuffer[] chunks;
+    
+    private long[] offsets;
+    private int maxCol;
+
+    private MappedSparseMatrix( Path path ) throws IOException {
+        this.path = path;
+        try( FileChannel fc = FileChannel.open( path, StandardOpenOption.READ ) ) {
+            long size = fc.size();
+            if( size % SparseMatrix.size_t != 0 ) throw new IOException( String.format(
+                "File %s is not a sparse matrix file: size %d is not a multiple of %d", 
+                path, size, SparseMatrix.size_t
+            ) );
+            this.entries = size / SparseMatrix.size_t;
+            int n = (int) ( ( size + CHUNK_SIZE - 1 ) / CHUNK_SIZE );
+            this.chunks = new ByteBuffer[n];
+            for( int c = 0; c < n; c++ ) {
+                long pos = c * CHUNK_SIZE;
+                MappedByteBuffer mbb = fc.map( 
+                    FileChannel.MapMode.READ_ONLY, pos, Math.min( CHUNK_SIZE, size - pos )
+                );
+                mbb.order( ByteOrder.nativeOrder() );
+                chunks[c] = mbb;
+            }
+        }
+    }
+    
+    /**
+     * Open the sparse matrix file at the given location, loading its row index or building it if 
+     * necessary.
+     * 
+     * @param path Path to a sparse matrix file.
+     * @return A read-only view of the given file.
+     * @throws IOException 
+     */
+    public static MappedSparseMatrix open( Path path ) throws IOException {
+        MappedSparseMatrix m = new MappedSparseMatrix( path );
+        Path idx = indexPath( path );
+        if( !m.loadIndex( idx ) ) {
+            m.buildIndex();
+            try {
+                m.writeIndex( idx );
+            } catch( IOException ex ) {
+                Logs.warnf( "Unable to write row index to %s: %s", idx, ex.getMessage() );
+            }
+        }
+        return m;
+    }
+    
+    /**
+     * Location of the row index file for the given data file.
+     * @param path Path to a sparse matrix file.
+     * @return Path to the corresponding row index file.
+     */
+    public static Path indexPath( Path path ) {
+        return Paths.get( path.toString() + INDEX_EXT );
+    }
+    
+    /**
+     * Total number of non-zero entries in this matrix.
+     * @return The number of records in the underlying file.
+     */
+    public long size() {
+        return entries;
+    }
+    
+    /**
+     * Row and column index of the last (bottom-right) entry in this matrix.
+     * 
+     * @return An {@code int[]{row,col}} array with maximum indices.
+     */
+    public int[] last() {
+        return new int[]{ offsets.length - 2, maxCol };
+    }
+    
+    /**
+     * Number of non-zero entries in row i.
+     * @param i A row index.
+     * @return The number of entries in the given row.
+     */
+    public int rowSize( int i ) {
+        if( i < 0 || i >= offsets.length - 1 ) return 0;
+        return (int) ( offsets[i + 1] - offsets[i] );
+    }
+    
+    /**
+     * Obtain a view of row i.
+     * @param i A row index.
+     * @return A {@link Row} with all non-zero entries in the given row.
+     */
+    public Row row( int i ) {
+        if( i < 0 || i >= offsets.length - 1 ) return new Row( i, 0, 0 );
+        return new Row( i, offsets[i], offsets[i + 1] );
+    }
+    
+    /**
+     * Get the value at row i column j.
+     * @param i Row index
+     * @param j Col index
+     * @return The value at (i,j), or 0 if no such entry exists.
+     */
+    public double get( int i, int j ) {
+        return row( i ).get( j );
+    }
+    
+    /**
+     * Visit all non-zero entries in this matrix in ascending order.
+     * @param v A {@link Visitor}.
+     */
+    public void forEach( Visitor v ) {
+        for( long k = 0; k < entries; k++ ) {
+            v.visit( i( k ), j( k ), x( k ) );
+        }
+    }
+    
+    /**
+     * Obtain a streaming sorted cursor over all entries in this matrix.
+     * @return A {@link Cursor}.
+     */
+    public Cursor cursor() {
+        return cursor( 0, entries );
+    }
+    
+    /**
+     * Copy the contents of this matrix to the heap.
+     * @param tgt A SparseMatrix to write values to.
+     * @return A reference to tgt.
+     */
+    public SparseMatrix copy( SparseMatrix tgt ) {
+        forEach( ( i, j, x ) -> tgt.update( i, j, x ) );
+        return tgt;
+    }
+    
+    @Override
+    public void close() {
+        // Mapped buffers are released when collected.
+        for( int c = 0; c < chunks.length; c++ ) chunks[c] = null;
+        this.offsets = null;
+    }
+    
+    private Cursor cursor( final long from, final long to ) {
+        return new Cursor() {
+            private long k = from - 1;
+
+            @Override
+            public boolean next() {
+                return ++k < to;
+            }
+
+            @Override public int i() { return MappedSparseMatrix.this.i( k ); }
+            @Override public int j() { return MappedSparseMatrix.this.j( k ); }
+            @Override public double x() { return MappedSparseMatrix.this.x( k ); }
+        };
+    }
+    
+    private int i( long k ) {
+        return chunk( k ).getInt( offset( k ) );
+    }
+    
+    private int j( long k ) {
+        return chunk( k ).getInt( offset( k ) + Integer.BYTES );
+    }
+    
+    private double x( long k ) {
+        return chunk( k ).getDouble( offset( k ) + Integer.BYTES + Integer.BYTES );
+    }
+    
+    private ByteBuffer chunk( long k ) {
+        return chunks[ (int) ( k / RECS_PER_CHUNK ) ];
+    }
+    
+    private int offset( long k ) {
+        return (int) ( k % RECS_PER_CHUNK ) * SparseMatrix.size_t;
+    }
+    
+    private void buildIndex() {
+        Logs.infof( "Building row index for %s", path );
+        int maxRow = entries > 0 ? i( entries - 1 ) : -1;
+        long[] offs = new long[ maxRow + 2 ];
+        int last = -1;
+        int mc = -1;
+        for( long k = 0; k < entries; k++ ) {
+            int i = i( k );
+            int j = j( k );
+            mc = j > mc ? j : mc;
+            if( i < last ) throw new IllegalStateException( String.format(
+                "Sparse matrix file %s is not sorted: row %d after %d", path, i, last
+            ) );
+            while( last < i ) offs[ ++last ] = k;
+        }
+        while( last < maxRow + 1 ) offs[ ++last ] = entries;
+        this.offsets = offs;
+        this.maxCol = mc;
+    }
+    
+    private boolean loadIndex( Path idx ) throws IOException {
+        if( !Files.exists( idx ) ) return false;
+        if( Files.getLastModifiedTime( idx ).compareTo( Files.getLastModifiedTime( path ) ) < 0 ) {
+            return false;
+        }
+        try( FileChannel fc = FileChannel.open( idx, StandardOpenOption.READ ) ) {
+            MappedByteBuffer mbb = fc.map( FileChannel.MapMode.READ_ONLY, 0, fc.size() );
+            mbb.order( ByteOrder.nativeOrder() );
+            if( fc.size() < Long.BYTES * 2 + Integer.BYTES * 2 ) return false;
+            if( mbb.getLong() != INDEX_MAGIC ) return false;
+            if( mbb.getLong() != entries ) return false;
+            int n = mbb.getInt();
+            int mc = mbb.getInt();
+            if( mbb.remaining() != (long) n * Long.BYTES ) return false;
+            long[] offs = new long[n];
+            mbb.asLongBuffer().get( offs );
+            this.offsets = offs;
+            this.maxCol = mc;
+        }
+        return true;
+    }
+    
+    private void writeIndex( Path idx ) throws IOException {
+        long size = Long.BYTES * 2 + Integer.BYTES * 2 + (long) offsets.length * Long.BYTES;
+        try( FileChannel fc = FileUtils.openChannel( idx, false, true, true, true ) ) {
+            MappedByteBuffer mbb = fc.map( FileChannel.MapMode.READ_WRITE, 0, size );
+            mbb.order( ByteOrder.nativeOrder() );
+            mbb.putLong( INDEX_MAGIC );
+            mbb.putLong( entries );
+            mbb.putInt( offsets.length );
+            mbb.putInt( maxCol );
+            mbb.asLongBuffer().put( offsets );
+        }
+    }
+
+    /**
+     * View of a single row in a MappedSparseMatrix.
+     * 
+     * Entries in a row are sorted by column index.
+     */
+    public class Row {
+        /** This row's index. **/
+        public final int i;
+        private final long lo;
+        private final long hi;
+
+        Row( int i, long lo, long hi ) {
+            this.i = i;
+            this.lo = lo;
+            this.hi = hi;
+        }
+        
+        /**
+         * Number of non-zero entries in this row.
+         * @return The number of entries in this row.
+         */
+        public int size() {
+            return (int) ( hi - lo );
+        }
+        
+        /**
+         * Column index of the k-th entry in this row.
+         * @param k An entry number.
+         * @return The column index of the given entry.
+         */
+        public int col( int k ) {
+            return j( lo + k );
+        }
+        
+        /**
+         * Value of the k-th entry in this row.
+         * @param k An entry number.
+         * @return The value of the given entry.
+         */
+        public double val( int k ) {
+            return x( lo + k );
+        }
+        
+        /**
+         * Value at column j in this row.
+         * @param j A column index.
+         * @return The value at column j, or 0 if no such entry exists.
+         */
+        public double get( int j ) {
+            long l = lo;
+            long h = hi - 1;
+            while( l <= h ) {
+                long m = ( l + h ) >>> 1;
+                int c = j( m );
+                if( c < j ) l = m + 1;
+                else if( c > j ) h = m - 1;
+                else return x( m );
+            }
+            return 0d;
+        }
+        
+        /**
+         * Obtain a sorted cursor over this row's entries.
+         * @return A {@link Cursor}.
+         */
+        public Cursor cursor() {
+            return MappedSparseMatrix.this.cursor( lo, hi );
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/* 
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.util;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.apache.lucene.util.IntroSorter;
+
+/**
+ * SparseMatrix implementation backed by a single open-addressed hash table.
+ * 
+ * Entries are stored in two parallel primitive arrays, keyed by a packed {@code long} equal to 
+ * {@code (i << 32 | j)} and probed linearly. This avoids the per-row map objects and the 
+ * allocation churn of the default {@link SparseMatrix} implementation, at the cost of slower row 
+ * access, which is not needed for accumulation.
+ * 
+ * Since packed keys sort in row-major order, sorted traversal only requires sorting a copy of 
+ * the occupied keys, together with their values.
+ * 
+ * NB: Like its parent, instances of this class are not thread-safe.
+ * 
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public class PackedSparseMatrix extends SparseMatrix {
+
+    /** Default initial capacity. **/
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+    /** Maximum load factor before resizing. **/
+    public static final double LOAD_FACTOR = 0.6;
+    
+    private static final long EMPTY = -1l;
+    private static final int  MAX_CAPACITY = 1 << 30;
+    
+    private long[]   keys;
+    private double[] vals;
+    private int mask;
+    private int size;
+    private int threshold;
+    
+    private int maxRow = -1;
+    private int maxCol = -1;
+    
+    /**
+     * Create a new empty matrix with default initial capacity.
+     */
+    public PackedSparseMatrix() {
+        this( DEFAULT_CAPACITY );
+    }
+    
+    /**
+     * Create a new empty matrix with room for at least the given number of entries.
+     * 
+     * @param capacity Expected number of non-zero entries.
+     */
+    public PackedSparseMatrix( int capacity ) {
+        super( false );
+        alloc( tableSize( capacity ) );
+    }
+    
+    @Override
+    public void update( int i, int j, double d ) {
+        maxRow = i > maxRow ? i : maxRow;
+        maxCol = j > maxCol ? j : maxCol;
+        long k = pack( i, j );
+        int slot = slot( k );
+        while( keys[slot] != EMPTY ) {
+            if( keys[slot] == k ) {
+                vals[slot] += d;
+                return;
+            }
+            slot = ( slot + 1 ) & mask;
+        }
+        keys[slot] = k;
+        vals[slot] = d;
+        if( ++size > threshold ) rehash();
+    }
+    
+    /**
+     * Get the value at row i column j.
+     * 
+     * @param i Row index
+     * @param j Col index
+     * @return The value at (i,j), or 0 if no such entry exists.
+     */
+    public double get( int i, int j ) {
+        long k = pack( i, j );
+        int slot = slot( k );
+        while( keys[slot] != EMPTY ) {
+            if( keys[slot] == k ) return vals[slot];
+            slot = ( slot + 1 ) & mask;
+        }
+        return 0d;
+    }
+    
+    @Override
+    public void forEach( Visitor v ) {
+        for( int s = 0; s < keys.length; s++ ) {
+            long k = keys[s];
+            if( k == EMPTY ) continue;
+            v.visit( row( k ), col( k ), vals[s] );
+        }
+    }
+    
+    @Override
+    public Cursor cursor() {
+        final long[] sorted = new long[size];
+        final double[] values = new double[size];
+        int n = 0;
+        for( int s = 0; s < keys.length; s++ ) {
+            if( keys[s] == EMPTY ) continue;
+            sorted[n] = keys[s];
+            values[n++] = vals[s];
+        }
+        new IntroSorter() {
+            private long pivot;
+
+            @Override
+            protected void swap( int a, int b ) {
+                long k = sorted[a];
+                sorted[a] = sorted[b];
+                sorted[b] = k;
+                double x = values[a];
+                values[a] = values[b];
+                values[b] = x;
+            }
+
+            @Override
+            protected int compare( int a, int b ) {
+                return Long.compare( sorted[a], sorted[b] );
+            }
+
+            @Override
+            protected void setPivot( int a ) {
+                pivot = sorted[a];
+            }
+
+            @Override
+            protected int comparePivot( int b ) {
+                return Long.compare( pivot, sorted[b] );
+            }
+        }.sort( 0, n );
+        return new Cursor() {
+            private int c = -1;
+
+            @Override
+            public boolean next() {
+                return ++c < sorted.length;
+            }
+
+            @Override public int i() { return row( sorted[c] ); }
+            @Override public int j() { return col( sorted[c] ); }
+            @Override public double x() { return values[c]; }
+        };
+    }
+    
+    @Override
+    public int[] last() {
+        return new int[]{ maxRow, maxCol };
+    }
+    
+    @Override
+    public int nrows() {
+        BitSet rows = new BitSet( maxRow + 1 );
+        for( long k : keys ) {
+            if( k != EMPTY ) rows.set( row( k ) );
+        }
+        return rows.cardinality();
+    }
+    
+    @Override
+    public void clear() {
+        Arrays.fill( keys, EMPTY );
+        Arrays.fill( vals, 0d );
+        size = 0;
+        maxRow = -1;
+        maxCol = -1;
+    }
+    
+    @Override
+    public long size() {
+        return size;
+    }
+    
+    private void rehash() {
+        if( keys.length >= MAX_CAPACITY ) throw new IllegalStateException(
+            String.format( "PackedSparseMatrix can't grow beyond %d slots", MAX_CAPACITY )
+        );
+        long[]   oKeys = keys;
+        double[] oVals = vals;
+        alloc( keys.length << 1 );
+        for( int s = 0; s < oKeys.length; s++ ) {
+            long k = oKeys[s];
+            if( k == EMPTY ) continue;
+            int slot = slot( k );
+            while( keys[slot] != EMPTY ) slot = ( slot + 1 ) & mask;
+            keys[slot] = k;
+            vals[slot] = oVals[s];
+        }
+    }
+    
+    private void alloc( int len ) {
+        this.keys = new long[len];
+        this.vals = new double[len];
+        Arrays.fill( keys, EMPTY );
+        this.mask = len - 1;
+        this.threshold = (int) ( len * LOAD_FACTOR );
+    }
+
+    private int slot( long k ) {
+        // MurmurHash3 64-bit finalizer.
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return (int) k & mask;
+    }
+    
+    private static int tableSize( int capacity ) {
+        long min = (long) Math.ceil( capacity / LOAD_FACTOR );
+        int len = 2;
+        while( len < min && len < MAX_CAPACITY ) len <<= 1;
+        return len;
+    }
+    
+    private static long pack( int i, int j ) {
+        return ( (long) i << 32 ) | ( j & 0xffffffffl );
+    }
+    
+    private static int row( long k ) {
+        return (int) ( k >>> 32 );
+    }
+    
+    private static int col( long k ) {
+        return (int) k;
+    }
+}
@@ -0,0 +1,210 @@
+/* 
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Thread-safe SparseMatrix that splits its row space into a fixed number of shards.
+ * 
+ * Row i is owned by shard {@code i % n}, and each shard is an independent SparseMatrix of the 
+ * given {@link SparseMatrix.Backend} guarded by its own lock. Since shards never share rows, 
+ * concurrent writers only contend when they hit rows in the same shard, and the complete matrix 
+ * can be traversed or saved directly without merging partial results.
+ * 
+ * Using a number of shards equal to a small multiple of the number of writer threads keeps 
+ * contention low.
+ * 
+ * Updates are not applied one at a time: each writer thread buffers its updates for each shard 
+ * and applies them in batches of up to {@link #BATCH_SIZE}, taking the shard's lock once per 
+ * batch. Pending updates from all threads are flushed before the matrix is read or cleared.
+ * 
+ * NB: Updates are thread-safe, but traversal while updates are in progress is not.
+ * 
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public class ShardedSparseMatrix extends SparseMatrix {
+    
+    /** Maximum number of updates buffered by each thread for each shard. **/
+    public static final int BATCH_SIZE = 1 << 9;
+    
+    private final SparseMatrix[] shards;
+    private final List<Batch[]> batches = new ArrayList<>();
+    private final ThreadLocal<Batch[]> tlBatches = ThreadLocal.withInitial( () -> initBatches() );
+    
+    /**
+     * Create a new empty matrix with the given number of shards, using the default backend.
+     * @param n Number of shards.
+     */
+    public ShardedSparseMatrix( int n ) {
+        this( n, Backend.HASH );
+    }
+    
+    /**
+     * Create a new empty matrix with the given number of shards of the given backend.
+     * @param n Number of shards.
+     * @param backend A {@link SparseMatrix.Backend} for shard storage.
+     */
+    public ShardedSparseMatrix( int n, Backend backend ) {
+        super( false );
+        if( n < 1 ) throw new IllegalArgumentException( "Number of shards must be positive" );
+        this.shards = new SparseMatrix[n];
+        for( int s = 0; s < n; s++ ) {
+            shards[s] = backend.make();
+        }
+    }
+    
+    /**
+     * Number of shards in this matrix.
+     * @return The number of shards.
+     */
+    public int shards() {
+        return shards.length;
+    }
+    
+    @Override
+    public void update( int i, int j, double d ) {
+        int s = i % shards.length;
+        Batch b = tlBatches.get()[s];
+        if( b.add( i, j, d ) ) b.flush( shards[s] );
+    }
+    
+    /**
+     * Apply all pending updates from all threads.
+     * 
+     * Called before any read, so it only needs to be called explicitly to bound the memory held 
+     * by pending updates. Like traversal, it is not safe while updates are in progress.
+     */
+    public void flush() {
+        synchronized( batches ) {
+            for( Batch[] bs : batches ) {
+                for( int s = 0; s < bs.length; s++ ) bs[s].flush( shards[s] );
+            }
+        }
+    }
+    
+    @Override
+    public void forEach( Visitor v ) {
+        flush();
+        for( SparseMatrix shard : shards ) {
+            synchronized( shard ) {
+                shard.forEach( v );
+            }
+        }
+    }
+
+    @Override
+    public Cursor cursor() {
+        flush();
+        List<Cursor> srcs = new ArrayList<>( shards.length );
+        for( SparseMatrix shard : shards ) {
+            srcs.add( shard.cursor() );
+        }
+        return SparseMatrix.merge( srcs );
+    }
+    
+    @Override
+    public int[] last() {
+        flush();
+        int[] out = new int[]{ -1, -1 };
+        for( SparseMatrix shard : shards ) {
+            int[] last = shard.last();
+            out[0] = last[0] > out[0] ? last[0] : out[0];
+            out[1] = last[1] > out[1] ? last[1] : out[1];
+        }
+        return out;
+    }
+
+    @Override
+    public int nrows() {
+        flush();
+        int n = 0;
+        for( SparseMatrix shard : shards ) {
+            n += shard.nrows();
+        }
+        return n;
+    }
+
+    @Override
+    public void clear() {
+        synchronized( batches ) {
+            for( Batch[] bs : batches ) {
+                for( Batch b : bs ) b.n = 0;
+            }
+        }
+        for( SparseMatrix shard : shards ) {
+            synchronized( shard ) {
+                shard.clear();
+            }
+        }
+    }
+
+    @Override
+    public long size() {
+        flush();
+        long size = 0;
+        for( SparseMatrix shard : shards ) {
+            size += shard.size();
+        }
+        return size;
+    }
+    
+    private Batch[] initBatches() {
+        Batch[] bs = new Batch[ shards.length ];
+        for( int s = 0; s < bs.length; s++ ) bs[s] = new Batch();
+        synchronized( batches ) {
+            batches.add( bs );
+        }
+        return bs;
+    }
+    
+    /**
+     * Updates for a single shard buffered by a single thread.
+     */
+    private static class Batch {
+        private int[] is = new int[ 16 ];
+        private int[] js = new int[ 16 ];
+        private double[] ds = new double[ 16 ];
+        private int n = 0;
+        
+        /**
+         * @return {@code true} if this batch is full and should be flushed.
+         */
+        boolean add( int i, int j, double d ) {
+            if( n == is.length ) {
+                int len = Math.min( n << 1, BATCH_SIZE );
+                is = Arrays.copyOf( is, len );
+                js = Arrays.copyOf( js, len );
+                ds = Arrays.copyOf( ds, len );
+            }
+            is[n] = i;
+            js[n] = j;
+            ds[n] = d;
+            return ++n == BATCH_SIZE;
+        }
+        
+        void flush( SparseMatrix shard ) {
+            if( n == 0 ) return;
+            synchronized( shard ) {
+                for( int k = 0; k < n; k++ ) shard.update( is[k], js[k], ds[k] );
+            }
+            n = 0;
+        }
+    }
+}
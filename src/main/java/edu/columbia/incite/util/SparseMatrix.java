@@ -21,15 +21,19 @@ import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntDoubleHashMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.PriorityQueue;
 
 import edu.columbia.incite.util.SparseMatrix.Record;
 
@@ -47,10 +51,96 @@ public class SparseMatrix {
     /** Record struct size in bytes. **/
     public static int size_t = Integer.BYTES + Integer.BYTES + Double.BYTES;
     
-    private final TIntObjectMap<TIntDoubleMap> data = new TIntObjectHashMap<>();
+    /**
+     * Available storage backends for SparseMatrix instances.
+     */
+    public enum Backend {
+        /** Nested hash maps: one primitive map per row. See {@link SparseMatrix}. **/
+        HASH( 32 ),
+        /** Single open-addressed table on packed keys. See {@link PackedSparseMatrix}. **/
+        PACKED( 28 );
+        
+        /** Approximate heap cost of one entry, in bytes, including table slack. **/
+        public final int entryBytes;
+        
+        private Backend( int entryBytes ) {
+            this.entryBytes = entryBytes;
+        }
+        
+        /**
+         * Create a new empty SparseMatrix using this backend.
+         * @return An empty SparseMatrix.
+         */
+        public SparseMatrix make() {
+            switch( this ) {
+                case PACKED: return new PackedSparseMatrix();
+                default:     return new SparseMatrix();
+            }
+        }
+    }
+    
+    /**
+     * Callback for iteration over a SparseMatrix's non-zero entries.
+     */
+    @FunctionalInterface
+    public interface Visitor {
+        /**
+         * Process the entry at row i, column j with value x.
+         * @param i Row index
+         * @param j Col index
+         * @param x Value
+         */
+        void visit( int i, int j, double x );
+    }
+    
+    /**
+     * Pull-based iterator over a SparseMatrix's non-zero entries in ascending order, sorted by 
+     * row and then column.
+     * 
+     * Cursors are positioned before the first entry; {@link #next()} must be called before 
+     * accessing any values.
+     */
+    public interface Cursor {
+        /**
+         * Advance to the next entry.
+         * @return {@code false} if there are no more entries.
+         */
+        boolean next();
+        /** @return Row index of the current entry. **/
+        int i();
+        /** @return Col index of the current entry. **/
+        int j();
+        /** @return Value of the current entry. **/
+        double x();
+    }
+    
+    private final TIntObjectMap<TIntDoubleMap> data;
 
     private int maxRow = -1;
     private int maxCol = -1;
+    private long entries = 0;
+    
+    /**
+     * Create a new empty SparseMatrix.
+     */
+    public SparseMatrix() {
+        this( true );
+    }
+    
+    /**
+     * Create a new empty SparseMatrix, allocating row storage only if requested.
+     * 
+     * Subclasses that provide their own storage should call this constructor with 
+     * {@code false}, and must override all methods that access entries: 
+     * {@link #update(int, int, double)}, {@link #forEach(Visitor)}, {@link #cursor()}, 
+     * {@link #last()}, {@link #nrows()}, {@link #clear()} and {@link #size()}. All other methods 
+     * are implemented on top of these.
+     * 
+     * @param store {@code true} to allocate this class' row maps.
+     */
+    protected SparseMatrix( boolean store ) {
+        this.data = store ? new TIntObjectHashMap<>() : null;
+    }
     
     /** 
      * Increment entry at row i column j by the value d.
@@ -62,8 +152,14 @@ public class SparseMatrix {
     public void update( int i, int j, double d ) {
         maxRow = i > maxRow ? i : maxRow;
         maxCol = j > maxCol ? j : maxCol;
-        data.putIfAbsent( i, new TIntDoubleHashMap() );
-        data.get( i ).adjustOrPutValue( j, d, d );
+        TIntDoubleMap row = data.get( i );
+        if( row == null ) {
+            row = new TIntDoubleHashMap();
+            data.put( i, row );
+        }
+        int n = row.size();
+        row.adjustOrPutValue( j, d, d );
+        entries += row.size() - n;
     }
     
     /**
@@ -72,14 +168,92 @@ public class SparseMatrix {
      * @param src A SparseMatrix with values to add to this matrix.
      */
     public void merge( SparseMatrix src ) {
-        for( int i : src.data.keys() ) {
-            TIntDoubleMap row = src.data.get( i );
-            for( int j : row.keys() ) { 
-                this.update( i, j, row.get( j ) );
+        src.forEach( ( i, j, x ) -> this.update( i, j, x ) );
+    }
+    
+    /**
+     * Increments values in this SparseMatrix by the values from the given {@link Cursor}.
+     * 
+     * @param src A Cursor with values to add to this matrix.
+     */
+    public void merge( Cursor src ) {
+        while( src.next() ) {
+            this.update( src.i(), src.j(), src.x() );
+        }
+    }
+    
+    /**
+     * Visit all non-zero entries in this SparseMatrix, in no particular order.
+     * 
+     * @param v A {@link Visitor} to call for each entry.
+     */
+    public void forEach( Visitor v ) {
+        for( int i : data.keys() ) {
+            TIntDoubleMap row = data.get( i );
+            for( int j : row.keys() ) {
+                v.visit( i, j, row.get( j ) );
             }
         }
     }
     
+    /**
+     * Visit all non-zero entries in this SparseMatrix in ascending order, sorted by row and then 
+     * column.
+     * 
+     * @param v A {@link Visitor} to call for each entry.
+     */
+    public void forEachSorted( Visitor v ) {
+        Cursor c = cursor();
+        while( c.next() ) {
+            v.visit( c.i(), c.j(), c.x() );
+        }
+    }
+    
+    /**
+     * Obtain a {@link Cursor} over the non-zero entries in this SparseMatrix, in ascending order.
+     * 
+     * The returned cursor's behavior is undefined if this matrix is modified while iterating.
+     * 
+     * @return A sorted {@link Cursor} over this matrix's entries.
+     */
+    public Cursor cursor() {
+        final int[] rows = data.keys();
+        Arrays.sort( rows );
+        return new Cursor() {
+            private int r = -1;
+            private int c = 0;
+            private int[] cols = new int[0];
+            private TIntDoubleMap row;
+            
+            @Override
+            public boolean next() {
+                while( ++c >= cols.length ) {
+                    if( ++r >= rows.length ) return false;
+                    row = data.get( rows[r] );
+                    cols = row.keys();
+                    Arrays.sort( cols );
+                    c = -1;
+                }
+                return true;
+            }
+
+            @Override public int i() { return rows[r]; }
+            @Override public int j() { return cols[c]; }
+            @Override public double x() { return row.get( cols[c] ); }
+        };
+    }
+    
+    /**
+     * Combine the given sorted cursors into a single sorted cursor, adding the values of entries 
+     * found in more than one source.
+     * 
+     * @param srcs A list of sorted {@link Cursor}s.
+     * @return A sorted {@link Cursor} over the union of all entries in srcs.
+     */
+    public static Cursor merge( List<Cursor> srcs ) {
+        return new MergedCursor( srcs );
+    }
+    
     /**
      * Row and column index of the last (bottom-right) entry in this matrix.
      * 
@@ -109,6 +283,7 @@ public class SparseMatrix {
             data.get( i ).clear();                
         }
         data.clear();
+        entries = 0;
     }
 
     /**
@@ -120,11 +295,7 @@ public class SparseMatrix {
      * @return The number of non-zero entries in this SparseMatrix
      */
     public long size() {
-        long size = 0;
-        for( int i : data.keys() ) {
-            size += data.get( i ).size();
-        }
-        return size;
+        return entries;
     }
     
     /**
@@ -144,12 +315,7 @@ public class SparseMatrix {
      * @return A reference to tgt.
      */
     public static SparseMatrix copy( SparseMatrix src, SparseMatrix tgt ) {
-        for( int i : src.data.keys() ) {
-            TIntDoubleMap row = src.data.get( i );
-            for( int j : row.keys() ) { 
-                tgt.update( i, j, row.get( j ) );
-            }
-        }
+        src.forEach( ( i, j, x ) -> tgt.update( i, j, x ) );
         return tgt;
     }
         
@@ -162,28 +328,15 @@ public class SparseMatrix {
      * NB: Bytes are written in native order (usually little-endian) and NOT in the default Java 
      * big-endian order.
      * 
+     * Data is streamed to disk through a {@link Writer}, so files of any size can be produced.
+     * 
      * @param m A SparseMatrix instance.
      * @param path A {@link Path} to write data to.
      * @throws IOException
      */
     public static void save( SparseMatrix m, Path path ) throws IOException {
-        long entries = m.size();
-        try ( FileChannel fc = FileUtils.openChannel( path, true, true, true, true ) ) {
-            int[] rows = m.data.keys();
-            Arrays.sort( rows );
-            MappedByteBuffer buffer = fc.map( FileChannel.MapMode.READ_WRITE, 0, entries * size_t );
-            buffer.order( ByteOrder.nativeOrder() );
-            for( int i : rows ) {
-                TIntDoubleMap row = m.data.get( i );
-                int[] cols = row.keys();
-                Arrays.sort( cols );
-                for( int j : cols ) {
-                    double d = row.get( j );
-                    buffer.putInt( i );
-                    buffer.putInt( j );
-                    buffer.putDouble( d );
-                }
-            }
+        try( Writer w = new Writer( path ) ) {
+            m.forEachSorted( w );
         }
     }
     
@@ -200,14 +353,24 @@ public class SparseMatrix {
      * @throws IOException 
      */
     public static SparseMatrix load( String dir, String file ) throws IOException {
+        return load( Paths.get( dir ).resolve( file ) );
+    }
+    
+    /**
+     * Load SparseMatrix data from the file at the given location.
+     * 
+     * See {@link #load(java.lang.String, java.lang.String)}.
+     * 
+     * @param path A {@link Path} to read data from.
+     * @return A new SparseMatrix instance with all data found at the given location.
+     * 
+     * @throws IOException 
+     */
+    public static SparseMatrix load( Path path ) throws IOException {
         SparseMatrix out = new SparseMatrix();
-        try( FileChannel fc = FileUtils.openChannel( dir, file, true, StandardOpenOption.READ ) ) {
-            MappedByteBuffer buffer = fc.map( FileChannel.MapMode.READ_ONLY, 0, fc.size() );
-            while( buffer.position() != buffer.capacity() ) {
-                int i = buffer.getInt();
-                int j = buffer.getInt();
-                double d = buffer.getDouble();
-                out.update( i, j, d );
+        try( Reader r = new Reader( path ) ) {
+            while( r.next() ) {
+                out.update( r.i(), r.j(), r.x() );
             }
         }
         return out;
@@ -221,14 +384,7 @@ public class SparseMatrix {
      */
     public List<Record> triplets() {
         List<Record> out = new ArrayList<>();
-        for( int i : data.keys() ) {
-            TIntDoubleMap row = data.get( i );
-            for( int j : row.keys() ) {
-                double x = row.get( j );
-                out.add( new Record( i, j, x ) );
-            }
-        }
-        out.sort( ( r1, r2 ) -> r1.compareTo( r2 ) );
+        forEachSorted( ( i, j, x ) -> out.add( new Record( i, j, x ) ) );
         return out;
     }
     
@@ -240,19 +396,193 @@ public class SparseMatrix {
      * @return An {@link SpArrays} instance with all data in this matrix.
      */
     public SpArrays arrays() {
-        List<Record> trs = triplets();
-        int[] i = new int[ trs.size() ];
-        int[] j = new int[ trs.size() ];
-        double[] x = new double[ trs.size() ];
-        for( int it = 0; it < trs.size(); it++ ) {
-            Record r = trs.get( it );
-            i[it] = r.i;
-            j[it] = r.j;
-            x[it] = r.x;
-        }
+        int n = (int) size();
+        int[] i = new int[ n ];
+        int[] j = new int[ n ];
+        double[] x = new double[ n ];
+        int[] it = new int[]{ 0 };
+        forEachSorted( ( r, c, d ) -> {
+            i[it[0]] = r;
+            j[it[0]] = c;
+            x[it[0]] = d;
+            it[0]++;
+        } );
         return new SpArrays( i, j, x );
     }
 
+    /**
+     * Streaming writer for SparseMatrix files.
+     * 
+     * Records are appended through memory-mapped windows of {@link #WINDOW_SIZE} bytes, so the 
+     * total number of entries does not need to be known in advance and is not limited by the 
+     * maximum size of a single {@link MappedByteBuffer}. The file is truncated to its exact size on 
+     * {@link #close()}.
+     * 
+     * Callers are responsible for appending records in sorted order.
+     */
+    public static class Writer implements Visitor, Closeable {
+        /** Mapped window size in bytes. Always a multiple of {@link SparseMatrix#size_t}. **/
+        public static final long WINDOW_SIZE = ( 1l << 26 ) / size_t * size_t;
+        
+        private final FileChannel fc;
+        private MappedByteBuffer buffer;
+        private long pos = 0;
+        private long count = 0;
+        
+        /**
+         * Create a new writer over the file at the given location, overwriting any existing data.
+         * @param path A {@link Path} to write data to.
+         * @throws IOException 
+         */
+        public Writer( Path path ) throws IOException {
+            this.fc = FileUtils.openChannel( path, true, true, true, true );
+        }
+        
+        /**
+         * Append the given entry.
+         * @param i Row index
+         * @param j Col index
+         * @param x Value
+         * @throws IOException 
+         */
+        public void put( int i, int j, double x ) throws IOException {
+            if( buffer == null || !buffer.hasRemaining() ) {
+                pos += buffer == null ? 0 : buffer.position();
+                buffer = fc.map( FileChannel.MapMode.READ_WRITE, pos, WINDOW_SIZE );
+                buffer.order( ByteOrder.nativeOrder() );
+            }
+            buffer.putInt( i );
+            buffer.putInt( j );
+            buffer.putDouble( x );
+            count++;
+        }
+        
+        /**
+         * Number of records written so far.
+         * @return The number of records written to this writer.
+         */
+        public long count() {
+            return count;
+        }
+        
+        @Override
+        public void visit( int i, int j, double x ) {
+            try {
+                put( i, j, x );
+            } catch( IOException ex ) {
+                throw new UncheckedIOException( ex );
+            }
+        }
+        
+        @Override
+        public void close() throws IOException {
+            buffer = null;
+            fc.truncate( count * size_t );
+            fc.close();
+        }
+    }
+    
+    /**
+     * Streaming reader for SparseMatrix files.
+     * 
+     * Reads records through memory-mapped windows of {@link Writer#WINDOW_SIZE} bytes, mapping each 
+     * window only when it is needed. Files of any size can be read with constant heap use.
+     */
+    public static class Reader implements Cursor, Closeable {
+        
+        private final FileChannel fc;
+        private final long size;
+        private MappedByteBuffer buffer;
+        private long pos = 0;
+        private int i;
+        private int j;
+        private double x;
+        
+        /**
+         * Open a new reader over the file at the given location.
+         * @param path A {@link Path} to read data from.
+         * @throws IOException 
+         */
+        public Reader( Path path ) throws IOException {
+            this.fc = FileChannel.open( path, StandardOpenOption.READ );
+            this.size = fc.size();
+        }
+
+        @Override
+        public boolean next() {
+            try {
+                if( buffer == null || !buffer.hasRemaining() ) {
+                    pos += buffer == null ? 0 : buffer.capacity();
+                    if( pos >= size ) {
+                        close();
+                        return false;
+                    }
+                    buffer = fc.map( 
+                        FileChannel.MapMode.READ_ONLY, pos, Math.min( Writer.WINDOW_SIZE, size - pos )
+                    );
+                    buffer.order( ByteOrder.nativeOrder() );
+                }
+            } catch( IOException ex ) {
+                throw new UncheckedIOException( ex );
+            }
+            i = buffer.getInt();
+            j = buffer.getInt();
+            x = buffer.getDouble();
+            return true;
+        }
+
+        @Override public int i() { return i; }
+        @Override public int j() { return j; }
+        @Override public double x() { return x; }
+
+        @Override
+        public void close() throws IOException {
+            buffer = null;
+            fc.close();
+        }
+    }
+    
+    /**
+     * K-way merge of sorted cursors.
+     */
+    private static class MergedCursor implements Cursor {
+        private final PriorityQueue<Cursor> heap = new PriorityQueue<>(
+            ( c1, c2 ) -> {
+                int icomp = Integer.compare( c1.i(), c2.i() );
+                return icomp != 0 ? icomp : Integer.compare( c1.j(), c2.j() );
+            }
+        );
+        private int i;
+        private int j;
+        private double x;
+
+        MergedCursor( List<Cursor> srcs ) {
+            for( Cursor c : srcs ) {
+                if( c.next() ) heap.add( c );
+            }
+        }
+
+        @Override
+        public boolean next() {
+            if( heap.isEmpty() ) return false;
+            Cursor c = heap.poll();
+            i = c.i();
+            j = c.j();
+            x = c.x();
+            if( c.next() ) heap.add( c );
+            while( !heap.isEmpty() && heap.peek().i() == i && heap.peek().j() == j ) {
+                c = heap.poll();
+                x += c.x();
+                if( c.next() ) heap.add( c );
+            }
+            return true;
+        }
+
+        @Override public int i() { return i; }
+        @Override public int j() { return j; }
+        @Override public double x() { return x; }
+    }
+    
     /**
      * Array representation of a SparseMatrix.
      */
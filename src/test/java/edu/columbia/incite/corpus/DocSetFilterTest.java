@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.corpus;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BitSet;
+import org.apache.lucene.util.BytesRef;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link DocSet#filter(PostingsEnum, LeafReaderContext)} and
+ * {@link DocSet#filter(PostingsEnum)} against plain bitset filtering of the same postings, over
+ * a multi-segment index, for terms of different frequencies and sparse, dense and empty sets.
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public class DocSetFilterTest {
+
+    private static final String FIELD = "f";
+    private static final int DOCS = 5000;
+    private static final int SEGMENT_DOCS = 700;
+    // Terms and the fraction of documents they occur in.
+    private static final String[] TERMS = { "rare", "low", "high", "all" };
+    private static final double[] DF    = { .002,   .05,   .6,     1 };
+
+    private static Directory dir;
+    private static DirectoryReader reader;
+
+    @BeforeClass
+    public static void index() throws IOException {
+        FieldType ft = new FieldType( StringField.TYPE_NOT_STORED );
+        ft.setIndexOptions( IndexOptions.DOCS_AND_FREQS_AND_POSITIONS );
+        ft.freeze();
+
+        dir = new RAMDirectory();
+        IndexWriterConfig conf = new IndexWriterConfig( null );
+        conf.setMaxBufferedDocs( SEGMENT_DOCS );
+        conf.setMergePolicy( NoMergePolicy.INSTANCE );
+        Random rnd = new Random( 17 );
+        try( IndexWriter w = new IndexWriter( dir, conf ) ) {
+            for( int d = 0; d < DOCS; d++ ) {
+                Document doc = new Document();
+                for( int t = 0; t < TERMS.length; t++ ) {
+                    if( rnd.nextDouble() >= DF[t] ) continue;
+                    // Vary frequencies, so positions are checked too.
+                    for( int f = 0; f <= d % 3; f++ ) {
+                        doc.add( new org.apache.lucene.document.Field( FIELD, TERMS[t], ft ) );
+                    }
+                }
+                w.addDocument( doc );
+            }
+        }
+        reader = DirectoryReader.open( dir );
+        assertTrue( reader.leaves().size() > 1 );
+    }
+
+    @AfterClass
+    public static void close() throws IOException {
+        reader.close();
+        dir.close();
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        DocSet ds = new DocSet( reader.maxDoc() );
+        checkLeaves( ds );
+        checkTop( ds );
+    }
+
+    @Test
+    public void testSparse() throws IOException {
+        DocSet ds = random( .005, true, 1 );
+        checkLeaves( ds );
+        checkTop( ds );
+    }
+
+    @Test
+    public void testDense() throws IOException {
+        DocSet ds = random( .5, false, 2 );
+        checkLeaves( ds );
+        checkTop( ds );
+    }
+
+    @Test
+    public void testFull() throws IOException {
+        DocSet ds = random( 1, false, 3 );
+        checkLeaves( ds );
+        checkTop( ds );
+    }
+
+    @Test
+    public void testOneSegment() throws IOException {
+        // All documents in a single segment other than the first.
+        LeafReaderContext ctx = reader.leaves().get( 1 );
+        DocSet ds = new DocSet( reader.maxDoc() );
+        for( int d = 0; d < ctx.reader().maxDoc(); d++ ) ds.add( ctx.docBase + d );
+        checkLeaves( ds );
+        checkTop( ds );
+    }
+
+    @Test
+    public void testBothDrivers() throws IOException {
+        // Rare terms over dense sets are driven by postings, common terms over sparse sets by bits.
+        Set<Boolean> seen = new HashSet<>();
+        for( DocSet ds : new DocSet[]{ random( .005, true, 4 ), random( .5, false, 5 ) } ) {
+            for( LeafReaderContext ctx : reader.leaves() ) {
+                TermsEnum tEnum = ctx.reader().terms( FIELD ).iterator();
+                for( String term : TERMS ) {
+                    if( !tEnum.seekExact( new BytesRef( term ) ) ) continue;
+                    seen.add( drivesPostings( ds.filter( tEnum.postings( null ), ctx ) ) );
+                }
+            }
+        }
+        assertEquals( 2, seen.size() );
+    }
+
+    private static void checkLeaves( DocSet ds ) throws IOException {
+        for( LeafReaderContext ctx : reader.leaves() ) {
+            Terms terms = ctx.reader().terms( FIELD );
+            TermsEnum tEnum = terms.iterator();
+            for( String term : TERMS ) {
+                if( !tEnum.seekExact( new BytesRef( term ) ) ) continue;
+                List<int[]> exp = expected(
+                    tEnum.postings( null, PostingsEnum.POSITIONS ), ds.bits(), ctx.docBase
+                );
+                String msg = String.format( "%s in segment at %d", term, ctx.docBase );
+                assertPostings( msg, exp, ds.filter(
+                    tEnum.postings( null, PostingsEnum.POSITIONS ), ctx
+                ), true );
+                assertAdvance( msg, exp, ds.filter( tEnum.postings( null ), ctx ) );
+            }
+        }
+    }
+
+    private static void checkTop( DocSet ds ) throws IOException {
+        for( String term : TERMS ) {
+            Term t = new Term( FIELD, term );
+            List<int[]> exp = expected(
+                MultiFields.getTermPositionsEnum( reader, FIELD, t.bytes() ), ds.bits(), 0
+            );
+            assertPostings( term, exp, ds.filter(
+                MultiFields.getTermPositionsEnum( reader, FIELD, t.bytes() )
+            ), true );
+            assertAdvance( term, exp, ds.filter(
+                MultiFields.getTermDocsEnum( reader, FIELD, t.bytes() )
+            ) );
+        }
+    }
+
+    // Plain filtering: every posting tested against the bitset. Entries are doc, freq, positions.
+    private static List<int[]> expected( PostingsEnum pEnum, BitSet bits, int base )
+    throws IOException {
+        List<int[]> out = new ArrayList<>();
+        for( int d = pEnum.nextDoc(); d != PostingsEnum.NO_MORE_DOCS; d = pEnum.nextDoc() ) {
+            if( bits.get( base + d ) ) out.add( entry( pEnum, d ) );
+        }
+        return out;
+    }
+
+    private static int[] entry( PostingsEnum pEnum, int doc ) throws IOException {
+        int freq = pEnum.freq();
+        int[] e = new int[ freq + 2 ];
+        e[0] = doc;
+        e[1] = freq;
+        for( int i = 0; i < freq; i++ ) e[ i + 2 ] = pEnum.nextPosition();
+        return e;
+    }
+
+    private static void assertPostings( String msg, List<int[]> exp, PostingsEnum act, boolean pos )
+    throws IOException {
+        int n = 0;
+        for( int d = act.nextDoc(); d != PostingsEnum.NO_MORE_DOCS; d = act.nextDoc() ) {
+            assertTrue( msg + ": extra document " + d, n < exp.size() );
+            int[] e = exp.get( n++ );
+            assertEquals( msg, e[0], d );
+            assertEquals( msg, d, act.docID() );
+            if( !pos ) continue;
+            int[] a = entry( act, d );
+            assertEquals( msg, e.length, a.length );
+            for( int i = 1; i < e.length; i++ ) assertEquals( msg, e[i], a[i] );
+        }
+        assertEquals( msg + ": missing documents", exp.size(), n );
+        assertEquals( msg, PostingsEnum.NO_MORE_DOCS, act.nextDoc() );
+    }
+
+    // Advance by varying steps, checking the first expected document at or after each target.
+    private static void assertAdvance( String msg, List<int[]> exp, PostingsEnum act )
+    throws IOException {
+        Random rnd = new Random( exp.size() );
+        int target = 0;
+        int i = 0;
+        while( true ) {
+            while( i < exp.size() && exp.get( i )[0] < target ) i++;
+            int d = act.advance( target );
+            if( i == exp.size() ) {
+                assertEquals( msg, PostingsEnum.NO_MORE_DOCS, d );
+                return;
+            }
+            assertEquals( msg + ": advance to " + target, exp.get( i )[0], d );
+            target = d + 1 + rnd.nextInt( 50 );
+        }
+    }
+
+    private static DocSet random( double p, boolean sparse, long seed ) {
+        Random rnd = new Random( seed );
+        DocSet ds = new DocSet( reader.maxDoc(), sparse );
+        for( int d = 0; d < reader.maxDoc(); d++ ) {
+            if( rnd.nextDouble() < p ) ds.add( d );
+        }
+        return ds;
+    }
+
+    private static boolean drivesPostings( PostingsEnum pEnum ) {
+        try {
+            Field f = pEnum.getClass().getDeclaredField( "drivePostings" );
+            f.setAccessible( true );
+            return f.getBoolean( pEnum );
+        } catch( ReflectiveOperationException ex ) {
+            throw new AssertionError( ex );
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.corpus;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BitSet;
+import org.apache.lucene.util.BytesRef;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark for {@link DocSet#filter(PostingsEnum, LeafReaderContext)} against plain bitset
+ * filtering of the same postings, over a grid of set densities and term document frequencies.
+ *
+ * Run from the test classpath, e.g.:
+ * {@code java -cp <test classpath> org.openjdk.jmh.Main FilteredPostingsBenchmark}
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class FilteredPostingsBenchmark {
+
+    private static final String FIELD = "f";
+    private static final BytesRef TERM = new BytesRef( "t" );
+
+    /** Number of documents in the benchmark index. **/
+    @Param( { "200000" } )
+    public int docs;
+
+    /** Fraction of documents in the filtering set. **/
+    @Param( { "0.001", "0.01", "0.1", "0.5" } )
+    public double density;
+
+    /** Fraction of documents containing the filtered term. **/
+    @Param( { "0.001", "0.01", "0.1", "0.5" } )
+    public double df;
+
+    private Directory dir;
+    private DirectoryReader reader;
+    private DocSet ds;
+
+    @Setup( Level.Trial )
+    public void setup() throws IOException {
+        dir = new RAMDirectory();
+        IndexWriterConfig conf = new IndexWriterConfig( null );
+        conf.setMaxBufferedDocs( docs / 8 );
+        conf.setMergePolicy( NoMergePolicy.INSTANCE );
+        Random rnd = new Random( 17 );
+        try( IndexWriter w = new IndexWriter( dir, conf ) ) {
+            for( int d = 0; d < docs; d++ ) {
+                Document doc = new Document();
+                if( rnd.nextDouble() < df ) doc.add( new StringField( FIELD, "t", Field.Store.NO ) );
+                w.addDocument( doc );
+            }
+        }
+        reader = DirectoryReader.open( dir );
+        ds = new DocSet( docs, density < DocSet.DENSE_RATIO );
+        for( int d = 0; d < docs; d++ ) {
+            if( rnd.nextDouble() < density ) ds.add( d );
+        }
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown() throws IOException {
+        reader.close();
+        dir.close();
+    }
+
+    @Benchmark
+    public long filtered() throws IOException {
+        long sum = 0;
+        for( LeafReaderContext ctx : reader.leaves() ) {
+            TermsEnum tEnum = ctx.reader().terms( FIELD ).iterator();
+            if( !tEnum.seekExact( TERM ) ) continue;
+            PostingsEnum pEnum = ds.filter( tEnum.postings( null, PostingsEnum.NONE ), ctx );
+            for( int d = pEnum.nextDoc(); d != PostingsEnum.NO_MORE_DOCS; d = pEnum.nextDoc() ) {
+                sum += d;
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long plain() throws IOException {
+        BitSet bits = ds.bits();
+        long sum = 0;
+        for( LeafReaderContext ctx : reader.leaves() ) {
+            TermsEnum tEnum = ctx.reader().terms( FIELD ).iterator();
+            if( !tEnum.seekExact( TERM ) ) continue;
+            PostingsEnum pEnum = tEnum.postings( null, PostingsEnum.NONE );
+            for( int d = pEnum.nextDoc(); d != PostingsEnum.NO_MORE_DOCS; d = pEnum.nextDoc() ) {
+                if( bits.get( ctx.docBase + d ) ) sum += d;
+            }
+        }
+        return sum;
+    }
+}